@@ -0,0 +1,187 @@
+/**
+ * BatchRunner runs inference without a display, for batch pipelines
+ *
+ * usage: BatchRunner maze.maz (log file | log directory | -) [-a filter|smooth|viterbi] [-f csv|binary|grid] [-o output file]
+ *
+ * an observation log is a list of color readings (r, g, b, y) or observation values separated by whitespace or commas.
+ * a directory runs every file in it as one log, and - reads one log per line from standard input.
+ * results are streamed to standard output (or the output file) by a BeliefExporter as each log finishes,
+ * see it for the grid, csv and binary formats
+ */
+
+package PROT;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.la4j.vector.Vector;
+
+public class BatchRunner {
+
+	public static final String FILTER = "filter";
+	public static final String SMOOTH = "smooth";
+	public static final String VITERBI = "viterbi";
+
+	private final SensorRobot robot;
+	private final String algorithm;
+	private final BeliefExporter exporter;
+
+	//parameters: SensorRobot robot the model to run, String algorithm filter, smooth or viterbi,
+	//String format a BeliefExporter format, WritableByteChannel channel where results are written
+	public BatchRunner(SensorRobot robot, String algorithm, String format, WritableByteChannel channel){
+		if (!algorithm.equals(FILTER) && !algorithm.equals(SMOOTH) && !algorithm.equals(VITERBI)){
+			throw new IllegalArgumentException("unknown algorithm " + algorithm);
+		}
+		this.robot = robot;
+		this.algorithm = algorithm;
+		this.exporter = new BeliefExporter(robot, format, channel);
+	}
+
+	//run every log in a directory, in file name order
+	public void runDirectory(Path directory) throws IOException{
+		List<Path> logs = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try{
+			for (Path log: stream){
+				if (Files.isRegularFile(log)){
+					logs.add(log);
+				}
+			}
+		}
+		finally{
+			stream.close();
+		}
+		Collections.sort(logs);
+
+		for (Path log: logs){
+			runFile(log);
+		}
+	}
+
+	//run a single log file
+	public void runFile(Path log) throws IOException{
+		String text = new String(Files.readAllBytes(log), StandardCharsets.UTF_8);
+		run(log.getFileName().toString(), parseObservations(text));
+	}
+
+	//run one log per line of a reader, logs are named by line number
+	public void runLines(BufferedReader reader) throws IOException{
+		int line = 0;
+		String text;
+		while ((text = reader.readLine()) != null){
+			line++;
+			if (text.trim().length() > 0){
+				run(Integer.toString(line), parseObservations(text));
+			}
+		}
+	}
+
+	//run the algorithm on a sequence of observations and write the results
+	//the results of each log are flushed to the channel once the log is finished
+	public void run(String name, int[] obs) throws IOException{
+		if (algorithm.equals(FILTER)){
+			writeFilter(name, obs);
+		}
+		else if (algorithm.equals(SMOOTH)){
+			exporter.writeBeliefs(name, BeliefExporter.SMOOTHED, obs, robot.smoothingOffHeap(obs));
+		}
+		else if (obs.length > 0){
+			exporter.writePath(name, obs, robot.mostLikelySequence(obs));
+		}
+		exporter.flush();
+	}
+
+	//write out everything still buffered
+	public void flush() throws IOException{
+		exporter.flush();
+	}
+
+	//parse an observation log, see SensorRobot.parseObservations
+	public int[] parseObservations(String text){
+		return robot.parseObservations(text);
+	}
+
+	//filtering is written one time slice at a time as it is computed
+	private void writeFilter(String name, int[] obs) throws IOException{
+		exporter.beginBeliefs(name, BeliefExporter.FILTERED, obs, obs.length + 1);
+
+		Vector belief = robot.getState().get(0);
+		exporter.writeBelief(0, belief);
+		for (int t=0; t<obs.length; t++){
+			belief = robot.filterStep(belief, obs[t]);
+			exporter.writeBelief(t+1, belief);
+		}
+	}
+
+	private static void usage(){
+		System.err.println("usage: BatchRunner maze.maz (log file | log directory | -) [-a filter|smooth|viterbi] [-f csv|binary|grid] [-o output file]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException{
+		String algorithm = SMOOTH;
+		String format = BeliefExporter.CSV;
+		String output = null;
+		List<String> positional = new ArrayList<String>();
+
+		for (int i=0; i<args.length; i++){
+			if ((args[i].equals("-a") || args[i].equals("--algorithm")) && i+1 < args.length){
+				algorithm = args[++i];
+			}
+			else if ((args[i].equals("-f") || args[i].equals("--format")) && i+1 < args.length){
+				format = args[++i];
+			}
+			else if ((args[i].equals("-o") || args[i].equals("--output")) && i+1 < args.length){
+				output = args[++i];
+			}
+			else if (args[i].startsWith("-") && args[i].length() > 1){
+				usage();
+			}
+			else{
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() != 2){
+			usage();
+		}
+
+		Maze maze = Maze.readFromFile(positional.get(0));
+		if (maze == null){
+			System.err.println("could not read maze " + positional.get(0));
+			System.exit(1);
+		}
+
+		WritableByteChannel channel = output == null ? Channels.newChannel(System.out) : new FileOutputStream(new File(output)).getChannel();
+		try{
+			BatchRunner runner = new BatchRunner(new SensorRobot(maze), algorithm, format, channel);
+
+			String input = positional.get(1);
+			if (input.equals("-")){
+				runner.runLines(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+			}
+			else if (Files.isDirectory(Paths.get(input))){
+				runner.runDirectory(Paths.get(input));
+			}
+			else{
+				runner.runFile(Paths.get(input));
+			}
+			runner.flush();
+		}
+		finally{
+			channel.close();
+		}
+	}
+}
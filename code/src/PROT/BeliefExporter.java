@@ -0,0 +1,320 @@
+/**
+ * BeliefExporter writes sequences of belief states (and most likely paths) incrementally to a
+ * Writer, an OutputStream or a channel. Output goes through a fixed size buffer, one value at a time,
+ * so exporting a long posterior never builds the whole text in memory
+ *
+ * formats:
+ *   grid   - human readable, each time slice is drawn as the maze with the probability of each square (walls are X)
+ *   csv    - a header line and then one line per time slice: log,t,observation,P(cell_x_y)... (paths: log,t,observation,x,y)
+ *   binary - one record per sequence, little endian:
+ *            'P' 'R' 'O' 'T', byte version, byte kind (0 filtered, 1 smoothed, 2 path),
+ *            int name length, name (utf-8), int number of variables, int number of rows,
+ *            then rows x variables doubles (beliefs) or rows ints of maze locations (paths)
+ */
+
+package PROT;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.la4j.vector.Vector;
+
+public class BeliefExporter {
+
+	public static final String GRID = "grid";
+	public static final String CSV = "csv";
+	public static final String BINARY = "binary";
+
+	//kinds of sequence
+	public static final int FILTERED = 0;
+	public static final int SMOOTHED = 1;
+	public static final int PATH = 2;
+
+	private static final byte[] MAGIC = {'P', 'R', 'O', 'T'};
+	private static final byte VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final SensorRobot robot;
+	private final Maze maze;
+	private final String format;
+	private final int[] variableAt; //variable index of every maze location, -1 for walls
+
+	//exactly one of these is the target
+	private final WritableByteChannel channel;
+	private final ByteBuffer bytes;
+	private final Writer writer;
+	private final char[] chars;
+	private int numChars;
+
+	private boolean wroteHeader = false;
+
+	//the sequence being written
+	private String name;
+	private int[] obs;
+
+	//write to a channel in any format
+	public BeliefExporter(SensorRobot robot, String format, WritableByteChannel channel){
+		this(robot, format, channel, null);
+	}
+
+	//write to an output stream in any format
+	public BeliefExporter(SensorRobot robot, String format, OutputStream out){
+		this(robot, format, Channels.newChannel(out), null);
+	}
+
+	//write to a writer in a text format (grid or csv)
+	public BeliefExporter(SensorRobot robot, String format, Writer writer){
+		this(robot, format, null, writer);
+		if (format.equals(BINARY)){
+			throw new IllegalArgumentException("binary output needs a channel or an output stream");
+		}
+	}
+
+	private BeliefExporter(SensorRobot robot, String format, WritableByteChannel channel, Writer writer){
+		if (!format.equals(GRID) && !format.equals(CSV) && !format.equals(BINARY)){
+			throw new IllegalArgumentException("unknown format " + format);
+		}
+		this.robot = robot;
+		this.maze = robot.getMaze();
+		this.format = format;
+
+		this.channel = channel;
+		this.writer = writer;
+		if (channel != null){
+			bytes = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			chars = null;
+		}
+		else{
+			bytes = null;
+			chars = new char[BUFFER_SIZE];
+		}
+
+		variableAt = new int[maze.size()];
+		Arrays.fill(variableAt, -1);
+		for (int i=0; i<robot.variables.length; i++){
+			variableAt[robot.variables[i]] = i;
+		}
+	}
+
+	//Start a sequence of belief states, the rows are then written with writeBelief()
+	//parameters: String name of the sequence, int kind FILTERED or SMOOTHED, int[] obs the observations (or null),
+	//int rows the number of time slices that will be written
+	public void beginBeliefs(String name, int kind, int[] obs, int rows) throws IOException{
+		this.name = name;
+		this.obs = obs;
+
+		if (format.equals(BINARY)){
+			writeRecordHeader(kind, rows);
+		}
+		else if (format.equals(CSV) && !wroteHeader){
+			putAscii("log,t,observation");
+			int width = maze.width;
+			for (int location: robot.variables){
+				putAscii(",cell_");
+				putAscii(Integer.toString(location%width));
+				putAscii("_");
+				putAscii(Integer.toString(location/width));
+			}
+			putAscii("\n");
+			wroteHeader = true;
+		}
+	}
+
+	//write the belief state at time t of the current sequence
+	public void writeBelief(int t, Vector belief) throws IOException{
+		writeBelief(t, belief, null);
+	}
+
+	//write the belief state at time t of the current sequence
+	public void writeBelief(int t, double[] belief) throws IOException{
+		writeBelief(t, null, belief);
+	}
+
+	//the belief is either an la4j vector or an array
+	private void writeBelief(int t, Vector vector, double[] array) throws IOException{
+		int length = vector != null ? vector.length() : array.length;
+
+		if (format.equals(BINARY)){
+			for (int i=0; i<length; i++){
+				ensure(8);
+				bytes.putDouble(vector != null ? vector.get(i) : array[i]);
+			}
+		}
+		else if (format.equals(CSV)){
+			writeCsvPrefix(t);
+			for (int i=0; i<length; i++){
+				putAscii(",");
+				putAscii(Double.toString(vector != null ? vector.get(i) : array[i]));
+			}
+			putAscii("\n");
+		}
+		else{
+			writeGridHeader(t);
+			for (int y = 0; y < maze.height; y++) {
+				putAscii("| ");
+				for (int x = 0; x < maze.width; x++) {
+					int variable = variableAt[y*maze.width + x];
+					if (variable < 0){
+						putAscii("X");
+					}
+					else{
+						putAscii(Double.toString(vector != null ? vector.get(variable) : array[variable]));
+					}
+					putAscii("\t| ");
+				}
+				putAscii("\n|");
+				for (int x= 0; x < maze.width; x++){
+					putAscii("=======================|");
+				}
+				putAscii("\n");
+			}
+		}
+	}
+
+	//write a whole sequence of belief states, time 0 first
+	public void writeBeliefs(String name, int kind, int[] obs, List<Vector> states) throws IOException{
+		beginBeliefs(name, kind, obs, states.size());
+		int t=0;
+		for (Vector belief: states){
+			writeBelief(t, belief);
+			t++;
+		}
+	}
+
+	//write a whole sequence of belief states kept off the heap, time 0 first
+	public void writeBeliefs(String name, int kind, int[] obs, OffHeapBeliefHistory history) throws IOException{
+		beginBeliefs(name, kind, obs, history.length());
+		double[] slice = new double[history.numVariables()];
+		for (int t=0; t<history.length(); t++){
+			writeBelief(t, history.copy(t, slice));
+		}
+	}
+
+	//write a most likely path, path[t] is the variable at time t+1
+	public void writePath(String name, int[] obs, int[] path) throws IOException{
+		this.name = name;
+		this.obs = obs;
+
+		if (format.equals(BINARY)){
+			writeRecordHeader(PATH, path.length);
+		}
+		else if (format.equals(CSV) && !wroteHeader){
+			putAscii("log,t,observation,x,y\n");
+			wroteHeader = true;
+		}
+
+		for (int t=0; t<path.length; t++){
+			int location = robot.variables[path[t]];
+			if (format.equals(BINARY)){
+				ensure(4);
+				bytes.putInt(location);
+				continue;
+			}
+
+			if (format.equals(CSV)){
+				writeCsvPrefix(t+1);
+				putAscii(",");
+			}
+			else{
+				writeGridHeader(t+1);
+				putAscii("location: ");
+			}
+			putAscii(Integer.toString(location%maze.width));
+			putAscii(",");
+			putAscii(Integer.toString(location/maze.width));
+			putAscii("\n");
+		}
+	}
+
+	//write out everything still buffered
+	public void flush() throws IOException{
+		if (channel != null){
+			bytes.flip();
+			while (bytes.hasRemaining()){
+				channel.write(bytes);
+			}
+			bytes.clear();
+		}
+		else{
+			writer.write(chars, 0, numChars);
+			writer.flush();
+			numChars = 0;
+		}
+	}
+
+	private void writeRecordHeader(int kind, int rows) throws IOException{
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		ensure(MAGIC.length + 2 + 4 + nameBytes.length + 8);
+		bytes.put(MAGIC);
+		bytes.put(VERSION);
+		bytes.put((byte) kind);
+		bytes.putInt(nameBytes.length);
+		bytes.put(nameBytes);
+		bytes.putInt(robot.variables.length);
+		bytes.putInt(rows);
+	}
+
+	//log name, time and the observation at that time (empty at time 0)
+	private void writeCsvPrefix(int t) throws IOException{
+		putAscii(name);
+		putAscii(",");
+		putAscii(Integer.toString(t));
+		putAscii(",");
+		if (t > 0 && obs != null){
+			putAscii(robot.getColor(obs[t-1]));
+		}
+	}
+
+	private void writeGridHeader(int t) throws IOException{
+		putAscii("===============================================================================\n");
+		putAscii("                           t:");
+		putAscii(Integer.toString(t));
+		putAscii("   observation:");
+		if (t > 0 && obs != null){
+			putAscii(robot.getColor(obs[t-1]));
+			putAscii("          \n");
+		}
+		else{
+			putAscii("null        \n");
+		}
+		putAscii("===============================================================================\n");
+	}
+
+	//text output is plain ascii, so characters are copied straight into the buffer
+	private void putAscii(String s) throws IOException{
+		for (int i=0; i<s.length(); i++){
+			putAscii(s.charAt(i));
+		}
+	}
+
+	private void putAscii(char c) throws IOException{
+		if (channel != null){
+			ensure(1);
+			bytes.put((byte) c);
+			return;
+		}
+		if (numChars == chars.length){
+			flush();
+		}
+		chars[numChars++] = c;
+	}
+
+	//make room for the next n bytes
+	private void ensure(int n) throws IOException{
+		if (bytes.remaining() < n){
+			flush();
+			if (bytes.remaining() < n){
+				throw new IOException("record field of " + n + " bytes is larger than the output buffer");
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * BeliefListener is notified as belief states are computed, so results can be consumed
+ * (drawn, written out, ...) while inference is still running
+ */
+
+package PROT;
+
+import org.la4j.vector.Vector;
+
+public interface BeliefListener {
+	
+	//called after the belief state at time t has been computed
+	//parameters: int t the time slice, Vector belief the belief state at time t
+	void beliefUpdated(int t, Vector belief);
+}
@@ -0,0 +1,82 @@
+/**
+ * ColorSensor is the sensor model of a robot reading the color of the square it stands on, as a SymbolEmissionModel
+ *
+ * the symbol of a variable is the color of its square, and a confusion matrix gives the chance of each reading
+ * for each true color: P(reading o | color c) = confusion[c][o]. A sensor that errs differently on every square
+ * needs a DENSE EmissionModel instead
+ */
+
+package PROT;
+
+public class ColorSensor implements SymbolEmissionModel {
+
+	private final Maze maze;
+	private final int[] variables; //the location of every variable
+	private final char[] colors; //the symbols, a reading o means colors[o]
+	private final double[][] confusion;
+
+	//parameters: Maze maze, int[] variables the location of every variable, char[] colors the possible colors,
+	//double[][] confusion [true color][reading]. The arrays are read, not copied
+	public ColorSensor(Maze maze, int[] variables, char[] colors, double[][] confusion){
+		if (colors.length > 256){
+			throw new IllegalArgumentException("at most 256 colors");
+		}
+		if (confusion.length != colors.length){
+			throw new IllegalArgumentException("confusion matrix needs a row for each of " + colors.length + " colors");
+		}
+		for (double[] row: confusion){
+			if (row.length != colors.length){
+				throw new IllegalArgumentException("confusion matrix needs a column for each of " + colors.length + " readings");
+			}
+		}
+		this.maze = maze;
+		this.variables = variables;
+		this.colors = colors;
+		this.confusion = confusion;
+	}
+
+	//The confusion matrix of a sensor that errs at the given rate, equally likely to read any wrong color
+	public static double[][] uniformError(int numColors, double errorRate){
+		double[][] confusion = new double[numColors][numColors];
+		for (int c=0; c<numColors; c++){
+			for (int o=0; o<numColors; o++){
+				confusion[c][o] = c == o ? 1 - errorRate : errorRate/(numColors - 1);
+			}
+		}
+		return confusion;
+	}
+
+	public String structure(){
+		return SYMBOL_INDEXED;
+	}
+
+	public int numVariables(){
+		return variables.length;
+	}
+
+	public int numObservations(){
+		return colors.length;
+	}
+
+	public int numSymbols(){
+		return colors.length;
+	}
+
+	public int symbol(int variable){
+		char color = maze.getChar(variables[variable]);
+		for (int c=0; c<colors.length; c++){
+			if (colors[c] == color){
+				return c;
+			}
+		}
+		throw new IllegalArgumentException("square " + variables[variable] + " has unknown color '" + color + "'");
+	}
+
+	public double symbolProbability(int observation, int symbol){
+		return confusion[symbol][observation];
+	}
+
+	public double probability(int observation, int variable){
+		return confusion[symbol(variable)][observation];
+	}
+}
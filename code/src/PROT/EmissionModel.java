@@ -0,0 +1,28 @@
+/**
+ * EmissionModel describes a sensor model P(E_t = o | X_t = i) to HiddenMarkovModel
+ *
+ * the model declares its structure, which picks the kernel the model runs it with:
+ *
+ *   SYMBOL_INDEXED  - each variable shows one of a few symbols (the color of its square) and the reading only
+ *                     depends on the symbol, through a small confusion matrix. The model must also be a
+ *                     SymbolEmissionModel. Each step reads one byte per variable instead of a probability
+ *   DENSE           - any probability for any variable, such as a confusion matrix for every square
+ */
+
+package PROT;
+
+public interface EmissionModel {
+
+	public static final String SYMBOL_INDEXED = "symbol-indexed";
+	public static final String DENSE = "dense";
+
+	//returns SYMBOL_INDEXED or DENSE
+	public String structure();
+
+	public int numVariables();
+
+	public int numObservations();
+
+	//returns P(E_t = observation | X_t = variable)
+	public double probability(int observation, int variable);
+}
@@ -0,0 +1,349 @@
+/**
+ * ForwardCache remembers forward messages (filtered belief states) by the observation prefix that produced them,
+ * so queries on sequences that share a prefix with earlier queries resume from the longest cached prefix
+ * instead of filtering from time 0
+ *
+ * prefixes are kept in a path compressed trie: there is a node only where a message is kept or where prefixes
+ * branch, and each edge holds the run of observations between its two nodes. So there are at most about twice as
+ * many nodes as messages, and the rest of a prefix costs one int per observation rather than a node per time step.
+ * Nodes that hold a message are kept in least recently used order, and once there are more than maxEntries of them
+ * the oldest message is dropped. Nodes left with no message and no children are removed from the trie, and a node
+ * left with no message and one child is merged into it
+ *
+ * a cache is safe to share between threads. The trie is only touched while holding the cache's lock,
+ * the filtering steps themselves run outside it
+ */
+
+package PROT;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ForwardCache {
+
+	private final HiddenMarkovModel model;
+	private final int maxEntries;
+	private final int checkpointInterval; //a message is kept at most every this many steps (and at the end of each query)
+
+	//a query keeps at most 1/QUERY_SHARE of maxEntries messages, so one long query can't flush the cache
+	private static final int QUERY_SHARE = 4;
+
+	private final Node root;
+
+	//message holding nodes, least recently used first
+	private final LinkedHashMap<Node, Boolean> entries = new LinkedHashMap<Node, Boolean>(16, .75f, true);
+
+	//statistics
+	private long queries = 0;
+	private long queryHits = 0; //queries that resumed from a cached prefix
+	private long stepsRequested = 0;
+	private long stepsReused = 0;
+	private long evictions = 0;
+
+	//a prefix of observations
+	private static class Node {
+		Node parent;
+		int[] edge; //the observations from the parent's prefix to this one, empty for the root
+		Node[] children; //by the first observation of their edge
+		double[] message; //P(X_t|prefix), null if not cached
+		double logLikelihood; //log P(prefix), valid while message is set
+
+		Node(Node parent, int[] edge){
+			this.parent = parent;
+			this.edge = edge;
+		}
+	}
+
+	public ForwardCache(HiddenMarkovModel model, int maxEntries){
+		this(model, maxEntries, 1);
+	}
+
+	//parameters: int maxEntries the most forward messages kept, int checkpointInterval keep a message at most every this
+	//many steps. Long queries space their messages further apart, see run()
+	public ForwardCache(HiddenMarkovModel model, int maxEntries, int checkpointInterval){
+		if (maxEntries < 1 || checkpointInterval < 1){
+			throw new IllegalArgumentException("the cache needs room for at least one message");
+		}
+		this.model = model;
+		this.maxEntries = maxEntries;
+		this.checkpointInterval = checkpointInterval;
+
+		root = new Node(null, new int[0]);
+		root.message = new double[model.numVariables()];
+		for (int i=0; i<root.message.length; i++){
+			root.message[i] = model.getPrior(i);
+		}
+	}
+
+	//Compute the Belief State after the last observation: P(X_t|e_1:t)
+	public double[] filter(int[] obs){
+		double[] belief = new double[model.numVariables()];
+		run(obs, belief);
+		return belief;
+	}
+
+	//Compute log P(e_1:t)
+	public double logLikelihood(int[] obs){
+		return run(obs, null);
+	}
+
+	//Filter from the longest cached prefix, caching the new prefixes on the way
+	//
+	//a query keeps at most maxEntries/QUERY_SHARE messages spread evenly over the steps it filtered, so its memory
+	//doesn't grow with its length. Shallower prefixes are marked as used more recently than deeper ones, so eviction
+	//drops the tails of old queries first and keeps the short prefixes what-if variations share
+	//
+	//returns the log likelihood of obs
+	//parameters: double[] out receives the final belief state, or null
+	public double run(int[] obs, double[] out){
+		//find the longest cached prefix
+		Node resume;
+		int resumeDepth;
+		double logLikelihood;
+		double[] start;
+		synchronized (this){
+			queries++;
+			stepsRequested += obs.length;
+
+			resume = root;
+			resumeDepth = 0;
+			Node node = root;
+			int t = 0;
+			while (t < obs.length){
+				node = child(node, obs[t]);
+				if (node == null || matching(node.edge, obs, t, obs.length) < node.edge.length){
+					break;
+				}
+				t += node.edge.length;
+				if (node.message != null){
+					resume = node;
+					resumeDepth = t;
+				}
+			}
+			touchPath(resume);
+			start = resume.message;
+			logLikelihood = resume.logLikelihood;
+
+			if (resumeDepth > 0){
+				queryHits++;
+				stepsReused += resumeDepth;
+			}
+		}
+
+		if (resumeDepth == obs.length){
+			if (out != null){
+				System.arraycopy(start, 0, out, 0, start.length);
+			}
+			return logLikelihood;
+		}
+
+		//filter the rest of the sequence, keeping checkpoints
+		int steps = obs.length - resumeDepth;
+		int budget = Math.max(1, maxEntries/QUERY_SHARE);
+		int interval = Math.max(checkpointInterval, (steps + budget - 1)/budget);
+		int numCheckpoints = (steps - 1)/interval + 1;
+		double[][] checkpoints = new double[numCheckpoints][];
+		double[] logLikelihoods = new double[numCheckpoints];
+		int[] depths = new int[numCheckpoints];
+		int n = 0;
+
+		InferenceWorkspace workspace = model.getWorkspacePool().acquire();
+		try{
+			double[] belief = workspace.belief;
+			double[] next = workspace.scratch;
+			System.arraycopy(start, 0, belief, 0, belief.length);
+			for (int t=resumeDepth; t<obs.length; t++){
+				logLikelihood += Math.log(model.filterStep(belief, obs[t], next));
+				double[] swap = belief;
+				belief = next;
+				next = swap;
+
+				if ((t+1 - resumeDepth) % interval == 0 || t+1 == obs.length){
+					checkpoints[n] = belief.clone();
+					logLikelihoods[n] = logLikelihood;
+					depths[n] = t+1;
+					n++;
+				}
+			}
+			if (out != null){
+				System.arraycopy(belief, 0, out, 0, belief.length);
+			}
+		}
+		finally{
+			model.getWorkspacePool().release(workspace);
+		}
+
+		insert(obs, checkpoints, logLikelihoods, depths, n);
+		return logLikelihood;
+	}
+
+	//add the checkpoints of a query to the trie
+	private synchronized void insert(int[] obs, double[][] checkpoints, double[] logLikelihoods, int[] depths, int n){
+		//the node the query resumed from may have been evicted and pruned meanwhile, so walk down from the root again
+		Node node = root;
+		int t = 0; //the length of node's prefix
+		for (int c=0; c<n; c++){
+			int depth = depths[c];
+			while (t < depth){
+				Node next = child(node, obs[t]);
+				if (next == null){
+					//the rest of the way to the checkpoint is new
+					next = new Node(node, Arrays.copyOfRange(obs, t, depth));
+					attach(node, next);
+					node = next;
+					t = depth;
+					break;
+				}
+				int k = matching(next.edge, obs, t, depth);
+				if (k < next.edge.length){
+					next = split(next, k);
+				}
+				node = next;
+				t += k;
+			}
+			if (node.message == null){
+				node.message = checkpoints[c];
+				node.logLikelihood = logLikelihoods[c];
+			}
+		}
+		//mark the new messages and their cached ancestors as used, deepest first
+		touchPath(node);
+
+		//drop the least recently used messages
+		Iterator<Map.Entry<Node, Boolean>> oldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries){
+			Node evicted = oldest.next().getKey();
+			oldest.remove();
+			evicted.message = null;
+			prune(evicted);
+			evictions++;
+		}
+	}
+
+	//mark every message from node up to the root as just used, the deepest first so it is the first of them evicted
+	private void touchPath(Node node){
+		for (; node != root; node = node.parent){
+			if (node.message != null){
+				entries.remove(node);
+				entries.put(node, Boolean.TRUE);
+			}
+		}
+	}
+
+	//remove nodes that no longer lead to any message, and merge a node that no longer branches into its child
+	private void prune(Node node){
+		while (node != root && node.message == null){
+			Node only = null;
+			int count = 0;
+			if (node.children != null){
+				for (Node child: node.children){
+					if (child != null){
+						only = child;
+						count++;
+					}
+				}
+			}
+			if (count == 0){
+				node.parent.children[branch(node.edge[0])] = null;
+				node = node.parent;
+				continue;
+			}
+			if (count == 1){
+				int[] edge = Arrays.copyOf(node.edge, node.edge.length + only.edge.length);
+				System.arraycopy(only.edge, 0, edge, node.edge.length, only.edge.length);
+				only.edge = edge;
+				only.parent = node.parent;
+				node.parent.children[branch(edge[0])] = only;
+			}
+			return;
+		}
+	}
+
+	//returns how many observations of an edge match obs from time from, looking no further than time to
+	private static int matching(int[] edge, int[] obs, int from, int to){
+		int k = 0;
+		while (k < edge.length && from + k < to && edge[k] == obs[from + k]){
+			k++;
+		}
+		return k;
+	}
+
+	//add a child below a node
+	private void attach(Node parent, Node child){
+		if (parent.children == null){
+			parent.children = new Node[model.numObservations() + 1];
+		}
+		parent.children[branch(child.edge[0])] = child;
+	}
+
+	//split a node's edge after its first k observations
+	//returns the new node in between, which holds no message
+	private Node split(Node node, int k){
+		Node middle = new Node(node.parent, Arrays.copyOf(node.edge, k));
+		node.parent.children[branch(middle.edge[0])] = middle;
+		node.edge = Arrays.copyOfRange(node.edge, k, node.edge.length);
+		node.parent = middle;
+		attach(middle, node);
+		return middle;
+	}
+
+	private static Node child(Node node, int observation){
+		return node.children == null ? null : node.children[branch(observation)];
+	}
+
+	//index of an observation among a node's children, missing observations get their own branch
+	private static int branch(int observation){
+		return observation - HiddenMarkovModel.MISSING;
+	}
+
+	//number of cached forward messages, not counting the prior
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	//drop every cached message, the statistics are kept
+	public synchronized void clear(){
+		entries.clear();
+		root.children = null;
+	}
+
+	public synchronized Stats getStats(){
+		return new Stats(queries, queryHits, stepsRequested, stepsReused, evictions, entries.size());
+	}
+
+	//a snapshot of the cache statistics
+	public static class Stats {
+		public final long queries;
+		public final long queryHits; //queries that resumed from a cached prefix
+		public final long stepsRequested; //observations in all queries
+		public final long stepsReused; //observations that didn't have to be filtered again
+		public final long evictions;
+		public final int size;
+
+		Stats(long queries, long queryHits, long stepsRequested, long stepsReused, long evictions, int size){
+			this.queries = queries;
+			this.queryHits = queryHits;
+			this.stepsRequested = stepsRequested;
+			this.stepsReused = stepsReused;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		//fraction of queries that found a cached prefix
+		public double hitRate(){
+			return queries == 0 ? 0 : queryHits/(double) queries;
+		}
+
+		//fraction of filtering steps served from the cache
+		public double stepHitRate(){
+			return stepsRequested == 0 ? 0 : stepsReused/(double) stepsRequested;
+		}
+
+		public String toString(){
+			return String.format("queries=%d hitRate=%.3f stepHitRate=%.3f evictions=%d size=%d",
+					queries, hitRate(), stepHitRate(), evictions, size);
+		}
+	}
+}
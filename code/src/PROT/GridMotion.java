@@ -0,0 +1,160 @@
+/**
+ * GridMotion is the motion model of a robot on a maze grid, as a StencilOperator
+ *
+ * at every step the robot tries move m with probability moveProbability(m), the same on every square. A move into
+ * a wall or off the map leaves the robot where it is, and so does the probability left over when the moves add up
+ * to less than 1 (the robot idling). Uneven probabilities model wheels that drift one way
+ *
+ * row i of T holds every square that reaches square i by one move, and i itself for the moves that stay put:
+ *   X1[P(x1|x1)][P(x1|x2)][P(x1|x3)]...
+ *   X2[P(x2|x1)][P(x2|x2)][P(x2|x3)]...
+ */
+
+package PROT;
+
+import java.util.HashSet;
+
+public class GridMotion implements StencilOperator {
+
+	//east, north, west and south
+	public static final int[][] FOUR_CONNECTED = {{1,0},{0,1},{-1,0},{0,-1}};
+
+	//the four straight moves and the four diagonals
+	public static final int[][] EIGHT_CONNECTED = {{1,0},{0,1},{-1,0},{0,-1},{1,1},{-1,1},{-1,-1},{1,-1}};
+
+	private final Maze maze;
+	private final int[] variables; //the location of every variable
+	private final int[] variableAt; //the variable of every location, -1 for walls
+	private final int[][] moves; //{dx, dy}
+	private final double[] moveProbabilities;
+	private final double idle; //the probability of not trying to move
+
+	//parameters: Maze maze, int[] variables the location of every variable, int[] variableAt the variable of every
+	//location (-1 for walls), int[][] moves {dx, dy} pairs, double[] moveProbabilities the chance of trying each move,
+	//adding up to at most 1. The arrays are read, not copied, and must not change while a model is being built
+	public GridMotion(Maze maze, int[] variables, int[] variableAt, int[][] moves, double[] moveProbabilities){
+		if (moves.length != moveProbabilities.length){
+			throw new IllegalArgumentException(moves.length + " moves but " + moveProbabilities.length + " probabilities");
+		}
+		double total = 0;
+		for (int m=0; m<moves.length; m++){
+			if (moves[m].length != 2 || (moves[m][0] == 0 && moves[m][1] == 0)){
+				throw new IllegalArgumentException("move " + m + " must be a nonzero {dx, dy}");
+			}
+			if (!(moveProbabilities[m] >= 0)){
+				throw new IllegalArgumentException("move probability " + moveProbabilities[m]);
+			}
+			total += moveProbabilities[m];
+		}
+		if (total > 1 + 1e-9){
+			throw new IllegalArgumentException("move probabilities add up to " + total);
+		}
+		this.maze = maze;
+		this.variables = variables;
+		this.variableAt = variableAt;
+		this.moves = moves;
+		this.moveProbabilities = moveProbabilities;
+		this.idle = Math.max(0, 1 - total);
+	}
+
+	//every move equally likely
+	public static double[] uniform(int[][] moves){
+		double[] probabilities = new double[moves.length];
+		for (int m=0; m<moves.length; m++){
+			probabilities[m] = 1/((double) moves.length);
+		}
+		return probabilities;
+	}
+
+	public String structure(){
+		return STENCIL;
+	}
+
+	public int numVariables(){
+		return variables.length;
+	}
+
+	public int maxEntries(){
+		return moves.length + 1;
+	}
+
+	public int numMoves(){
+		return moves.length;
+	}
+
+	public double moveProbability(int m){
+		return moveProbabilities[m];
+	}
+
+	public int source(int m, int i){
+		int location = variables[i];
+		return variableAt(location%maze.width - moves[m][0], location/maze.width - moves[m][1]);
+	}
+
+	//the square itself first, for the moves that leave it there, then every square a move brings here
+	public int row(int i, int[] columns, double[] probabilities, int offset){
+		int location = variables[i];
+		int x = location%maze.width;
+		int y = location/maze.width;
+
+		double stay = idle;
+		int k = offset + 1;
+		for (int m=0; m<moves.length; m++){
+			if (variableAt(x + moves[m][0], y + moves[m][1]) < 0){
+				stay += moveProbabilities[m];
+			}
+			int source = variableAt(x - moves[m][0], y - moves[m][1]);
+			if (source >= 0){
+				columns[k] = source;
+				probabilities[k] = moveProbabilities[m];
+				k++;
+			}
+		}
+		columns[offset] = i;
+		probabilities[offset] = stay;
+		return k - offset;
+	}
+
+	//Where the robot ends up after one random step from a square
+	//
+	//returns the new location
+	//parameters: int location, double u uniform on [0, 1) which picks the move
+	public int step(int location, double u){
+		int x = location%maze.width;
+		int y = location/maze.width;
+		for (int m=0; m<moves.length; m++){
+			u -= moveProbabilities[m];
+			if (u < 0){
+				return maze.isLegal(x + moves[m][0], y + moves[m][1]) ? location + moves[m][0] + moves[m][1]*maze.width : location;
+			}
+		}
+		return location;
+	}
+
+	//returns the locations whose rows depend on whether location is a wall: the squares it moves to and
+	//the squares that move onto it
+	public HashSet<Integer> affected(int location){
+		HashSet<Integer> locations = new HashSet<Integer>();
+		int x = location%maze.width;
+		int y = location/maze.width;
+		for (int[] move: moves){
+			addIfLegal(locations, x + move[0], y + move[1]);
+			addIfLegal(locations, x - move[0], y - move[1]);
+		}
+		return locations;
+	}
+
+	private void addIfLegal(HashSet<Integer> locations, int x, int y){
+		if (maze.isLegal(x, y)){
+			locations.add(x + y*maze.width);
+		}
+	}
+
+	//returns the variable at (x, y), -1 for a wall or a square off the map
+	private int variableAt(int x, int y){
+		if (x < 0 || x >= maze.width || y < 0 || y >= maze.height){
+			return -1;
+		}
+		return variableAt[x + y*maze.width];
+	}
+}
@@ -0,0 +1,1014 @@
+/**
+ * HiddenMarkovModel is the immutable part of a ProbabilisticReasoningAgent: the transition model,
+ * the observation model and the distribution at time 0
+ *
+ * nothing in a model changes after it is built, so one instance can be shared by any number of threads.
+ * everything a query writes to lives in an InferenceWorkspace, which belongs to one query at a time
+ * and can be reused through a WorkspacePool
+ *
+ * the transition model is sparse. Each variable only has a few predecessors (a maze square can only be reached
+ * from itself and its neighbors), so row i of T is stored as a fixed number of (column, probability) slots:
+ *   T[i][columns[i*slots + k]] = probabilities[i*slots + k]
+ * unused slots point at column i with probability 0. The emission model stores P(observation | variable) as
+ * one array per observation value, the diagonal of the la4j observation matrices
+ *
+ * a model built from a TransitionOperator and an EmissionModel also runs its filtering and smoothing steps on the
+ * structure they declare: a stencil of shared move probabilities, a dense or diagonal T, and emissions looked up
+ * through the symbol each variable shows. The sparse arrays above are kept too, the other inference engines
+ * and viterbi read them. A dense T only builds them the first time they are asked for, so a model that only filters
+ * and smooths doesn't hold T twice
+ *
+ * a time step without a reading is written as MISSING. It is a prediction step with no evidence, and a run of them
+ * is skipped in one go through the cached powers of T (see TransitionPowers)
+ */
+
+package PROT;
+
+import java.util.Arrays;
+
+import org.la4j.matrix.Matrix;
+import org.la4j.vector.Vector;
+
+public final class HiddenMarkovModel {
+
+	//the observation at a time step where the sensor gave no reading
+	public static final int MISSING = -1;
+
+	//the most variables a dense T can have, its S x S entries must fit in one array
+	public static final int MAX_DENSE_VARIABLES = 46340;
+
+	private final int numVariables;
+	private final int numObservations;
+
+	//sparse transition model T[i][j] = P(X_t = i | X_t-1 = j), null until it's first asked for when T is dense
+	private volatile SlotRows rows;
+
+	//emission[o][i] = P(E_t = o | X_t = i)
+	private final double[][] emission;
+	private final double[][] logEmission;
+
+	private final double[] prior; //P(X_0)
+
+	//the emission row of a missing observation, every variable explains it equally
+	private final double[] noEvidence;
+	private final double[] noLogEvidence;
+
+	//the kernels filtering and smoothing run on, see fromOperators()
+	private final Kernels kernels;
+
+	private final TransitionPowers powers;
+
+	private final WorkspacePool pool;
+
+	private volatile long fingerprint = 0; //computed the first time it's asked for
+
+	//the model takes ownership of the arrays, callers must not change them afterwards
+	HiddenMarkovModel(int slots, int[] columns, double[] probabilities, double[][] emission, double[] prior){
+		this(new SlotRows(slots, columns, probabilities, log(probabilities)), emission, log(emission), prior, Kernels.SPARSE_ROWS);
+	}
+
+	//parameters: SlotRows rows the sparse transition model, null for a dense T which builds it when it's asked for
+	private HiddenMarkovModel(SlotRows rows, double[][] emission, double[][] logEmission, double[] prior, Kernels kernels){
+		this.numVariables = prior.length;
+		this.numObservations = emission.length;
+		this.rows = rows;
+		this.emission = emission;
+		this.logEmission = logEmission;
+		this.prior = prior;
+		this.kernels = kernels;
+
+		if (rows != null && (rows.columns.length != numVariables*rows.slots || rows.probabilities.length != numVariables*rows.slots)){
+			throw new IllegalArgumentException("transition model needs " + rows.slots + " slots for each of " + numVariables + " variables");
+		}
+		for (int o=0; o<numObservations; o++){
+			if (emission[o].length != numVariables){
+				throw new IllegalArgumentException("emission model for observation " + o + " has the wrong length");
+			}
+		}
+
+		noEvidence = new double[numVariables];
+		Arrays.fill(noEvidence, 1.0);
+		noLogEvidence = new double[numVariables];
+
+		pool = new WorkspacePool(this);
+		powers = new TransitionPowers(this);
+	}
+
+	private static double[] log(double[] probabilities){
+		double[] logs = new double[probabilities.length];
+		for (int i=0; i<probabilities.length; i++){
+			logs[i] = Math.log(probabilities[i]);
+		}
+		return logs;
+	}
+
+	private static double[][] log(double[][] probabilities){
+		double[][] logs = new double[probabilities.length][];
+		for (int o=0; o<probabilities.length; o++){
+			logs[o] = log(probabilities[o]);
+		}
+		return logs;
+	}
+
+	//A copy of this model with some variables replaced, for small edits to a large model.
+	//the arrays of the other variables are copied, not recomputed, so only the given rows cost any real work.
+	//if the operators don't fit this model's kernels (different moves, symbols or row width, or a dense T) the whole
+	//model is rebuilt from them instead
+	//
+	//returns the new model, this one is left as it was
+	//parameters: int numVariables of the new model, variables past the end of this model are added and variables past
+	//the end of the new model are dropped, int[] rows the variables whose transition row and emissions are rebuilt
+	//(every added variable must be one of them), TransitionOperator transition and EmissionModel emission the models
+	//over the new variables, double[] prior of the new model
+	HiddenMarkovModel patch(int numVariables, int[] rows, TransitionOperator transition, EmissionModel emission, double[] prior){
+		checkOperators(transition, emission, prior);
+		//a dense T never fits, so the slot rows are already built
+		if (!kernels.fits(transition, emission) || rowSlots(transition) != slots() || emission.numObservations() != numObservations){
+			return fromOperators(transition, emission, prior);
+		}
+
+		int slots = slots();
+		int size = numVariables*slots;
+		int[] newColumns = Arrays.copyOf(columns(), size);
+		double[] newProbabilities = Arrays.copyOf(probabilities(), size);
+		double[] newLogProbabilities = Arrays.copyOf(logProbabilities(), size);
+		double[][] newEmission = new double[numObservations][];
+		double[][] newLogEmission = new double[numObservations][];
+		for (int o=0; o<numObservations; o++){
+			newEmission[o] = Arrays.copyOf(this.emission[o], numVariables);
+			newLogEmission[o] = Arrays.copyOf(logEmission[o], numVariables);
+		}
+		Kernels newKernels = kernels.resize(numVariables);
+
+		for (int i: rows){
+			compileRow(i, transition, emission, slots, newColumns, newProbabilities, newLogProbabilities, i*slots, newEmission, newLogEmission, newKernels);
+		}
+		return new HiddenMarkovModel(new SlotRows(slots, newColumns, newProbabilities, newLogProbabilities),
+				newEmission, newLogEmission, prior, newKernels);
+	}
+
+	//Build a model from a transition operator and an emission model. Filtering and smoothing run on the structure
+	//each declares, see TransitionOperator and EmissionModel. A dense T is limited to MAX_DENSE_VARIABLES variables
+	//parameters: TransitionOperator transition, EmissionModel emission, double[] prior the distribution at time 0
+	public static HiddenMarkovModel fromOperators(TransitionOperator transition, EmissionModel emission, double[] prior){
+		checkOperators(transition, emission, prior);
+		int n = prior.length;
+		int slots = rowSlots(transition);
+		int numObservations = emission.numObservations();
+
+		double[][] emissions = new double[numObservations][n];
+		double[][] logEmissions = new double[numObservations][n];
+		Kernels kernels = Kernels.of(transition, emission, n);
+
+		if (kernels.transition == Kernels.DENSE){
+			//each row only passes through to the dense array
+			int[] columns = new int[slots];
+			double[] probabilities = new double[slots];
+			for (int i=0; i<n; i++){
+				compileRow(i, transition, emission, slots, columns, probabilities, null, 0, emissions, logEmissions, kernels);
+			}
+			return new HiddenMarkovModel(null, emissions, logEmissions, prior, kernels);
+		}
+
+		int[] columns = new int[n*slots];
+		double[] probabilities = new double[n*slots];
+		double[] logProbabilities = new double[n*slots];
+		for (int i=0; i<n; i++){
+			compileRow(i, transition, emission, slots, columns, probabilities, logProbabilities, i*slots, emissions, logEmissions, kernels);
+		}
+		return new HiddenMarkovModel(new SlotRows(slots, columns, probabilities, logProbabilities), emissions, logEmissions, prior, kernels);
+	}
+
+	private static void checkOperators(TransitionOperator transition, EmissionModel emission, double[] prior){
+		if (transition.numVariables() != prior.length || emission.numVariables() != prior.length){
+			throw new IllegalArgumentException("transition model has " + transition.numVariables() + " variables, emission model "
+					+ emission.numVariables() + " and prior " + prior.length);
+		}
+	}
+
+	private static int rowSlots(TransitionOperator transition){
+		return Math.max(1, transition.maxEntries());
+	}
+
+	//build variable i's slots, emissions and kernel entries from the operators
+	//the slots are written at offset, and their logs only if logProbabilities isn't null
+	private static void compileRow(int i, TransitionOperator transition, EmissionModel emission, int slots, int[] columns,
+			double[] probabilities, double[] logProbabilities, int offset, double[][] emissions, double[][] logEmissions, Kernels kernels){
+		int count = transition.row(i, columns, probabilities, offset);
+		if (count > slots){
+			throw new IllegalArgumentException("row " + i + " has " + count + " entries, maxEntries() is " + slots);
+		}
+		for (int k=offset+count; k<offset+slots; k++){
+			columns[k] = i;
+			probabilities[k] = 0;
+		}
+		for (int k=offset; logProbabilities != null && k<offset+slots; k++){
+			logProbabilities[k] = Math.log(probabilities[k]);
+		}
+		kernels.setRow(i, transition, emission, columns, probabilities, offset, slots);
+
+		for (int o=0; o<emissions.length; o++){
+			double p = kernels.symbols != null ? kernels.symbolEmission[o][kernels.symbols[i] & 0xff] : emission.probability(o, i);
+			emissions[o][i] = p;
+			logEmissions[o][i] = Math.log(p);
+		}
+	}
+
+	//Build a model from la4j matrices, the way subclasses of ProbabilisticReasoningAgent describe their models
+	//parameters: Matrix t the transition model, Matrix[] o the diagonal observation matrices, Vector initial the distribution at time 0
+	public static HiddenMarkovModel fromMatrices(Matrix t, Matrix[] o, Vector initial){
+		int n = t.rows();
+
+		//the widest row decides the number of slots
+		int slots = 1;
+		for (int i=0; i<n; i++){
+			int nonZero = 0;
+			for (int j=0; j<n; j++){
+				if (t.get(i, j) != 0){
+					nonZero++;
+				}
+			}
+			slots = Math.max(slots, nonZero);
+		}
+
+		int[] columns = new int[n*slots];
+		double[] probabilities = new double[n*slots];
+		for (int i=0; i<n; i++){
+			int k = i*slots;
+			for (int j=0; j<n; j++){
+				if (t.get(i, j) != 0){
+					columns[k] = j;
+					probabilities[k] = t.get(i, j);
+					k++;
+				}
+			}
+			for (; k<(i+1)*slots; k++){
+				columns[k] = i;
+			}
+		}
+
+		double[][] emission = new double[o.length][n];
+		for (int obs=0; obs<o.length; obs++){
+			for (int i=0; i<n; i++){
+				emission[obs][i] = o[obs].get(i, i);
+			}
+		}
+
+		double[] prior = new double[n];
+		for (int i=0; i<n; i++){
+			prior[i] = initial.get(i);
+		}
+
+		return new HiddenMarkovModel(slots, columns, probabilities, emission, prior);
+	}
+
+	public int numVariables(){
+		return numVariables;
+	}
+
+	public int numObservations(){
+		return numObservations;
+	}
+
+	//returns P(X_t = to | X_t-1 = from)
+	public double getTransition(int to, int from){
+		if (kernels.transition == Kernels.DENSE){
+			return kernels.dense[to*numVariables + from];
+		}
+		int slots = slots();
+		int[] columns = columns();
+		double[] probabilities = probabilities();
+		double p = 0;
+		for (int k=to*slots; k<(to+1)*slots; k++){
+			if (columns[k] == from){
+				p += probabilities[k];
+			}
+		}
+		return p;
+	}
+
+	//returns P(E_t = observation | X_t = variable), 1 for a missing observation
+	public double getEmission(int observation, int variable){
+		return emission(observation)[variable];
+	}
+
+	//returns P(X_0 = variable)
+	public double getPrior(int variable){
+		return prior[variable];
+	}
+
+	//the sparse transition model, for the other inference engines in this package. These arrays must not be modified
+	int slots(){
+		return slotRows().slots;
+	}
+
+	int[] columns(){
+		return slotRows().columns;
+	}
+
+	double[] probabilities(){
+		return slotRows().probabilities;
+	}
+
+	double[] logProbabilities(){
+		return slotRows().logProbabilities;
+	}
+
+	//returns the sparse transition model, building it from the dense one the first time
+	private SlotRows slotRows(){
+		SlotRows r = rows;
+		if (r == null){
+			synchronized (this){
+				r = rows;
+				if (r == null){
+					r = SlotRows.fromDense(kernels.dense, numVariables);
+					rows = r;
+				}
+			}
+		}
+		return r;
+	}
+
+	//emission(o)[i] = P(E_t = o | X_t = i)
+	double[] emission(int observation){
+		return observation == MISSING ? noEvidence : emission[observation];
+	}
+
+	double[] logEmission(int observation){
+		return observation == MISSING ? noLogEvidence : logEmission[observation];
+	}
+
+	//A 64 bit hash of every number in the model, so a saved belief state can be matched with the model it was
+	//computed with. Two models with the same fingerprint number their variables the same way
+	public long fingerprint(){
+		long f = fingerprint;
+		if (f == 0){
+			if (kernels.transition == Kernels.DENSE){
+				f = hash(hash(hash(0, numVariables), numObservations), -1);
+				for (double p: kernels.dense){
+					f = hash(f, Double.doubleToLongBits(p));
+				}
+			}
+			else{
+				SlotRows r = slotRows();
+				f = hash(hash(hash(0, numVariables), numObservations), r.slots);
+				for (int k=0; k<r.columns.length; k++){
+					f = hash(hash(f, r.columns[k]), Double.doubleToLongBits(r.probabilities[k]));
+				}
+			}
+			for (int o=0; o<numObservations; o++){
+				for (int i=0; i<numVariables; i++){
+					f = hash(f, Double.doubleToLongBits(emission[o][i]));
+				}
+			}
+			for (int i=0; i<numVariables; i++){
+				f = hash(f, Double.doubleToLongBits(prior[i]));
+			}
+			//0 means not computed yet
+			f = f == 0 ? 1 : f;
+			fingerprint = f;
+		}
+		return f;
+	}
+
+	//fold a value into a running 64 bit hash (an FNV-1a step over the whole value followed by a murmur3 finalizer)
+	static long hash(long h, long value){
+		h = (h ^ value)*0x100000001b3L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	//the cached powers of T used to skip over missing observations
+	public TransitionPowers getTransitionPowers(){
+		return powers;
+	}
+
+	//Predict steps time steps ahead with no observations, the belief state is replaced by T^steps*belief
+	//parameters: double[] belief the belief state, long steps, double[] scratch space the size of belief
+	public void advance(double[] belief, long steps, double[] scratch){
+		double[] result = powers.advance(belief, steps, scratch);
+		if (result != belief){
+			System.arraycopy(result, 0, belief, 0, numVariables);
+		}
+	}
+
+	//the pool of workspaces used by the methods that don't take one
+	public WorkspacePool getWorkspacePool(){
+		return pool;
+	}
+
+	//a new workspace sized for this model
+	public InferenceWorkspace newWorkspace(){
+		return new InferenceWorkspace(numVariables);
+	}
+
+	//Compute the Belief State at time t: P(X_t|e_1:t)
+	//
+	//returns a new array with the belief state after the last observation
+	//parameters: int[] obs is the sequence of observations, InferenceWorkspace workspace scratch space for this query
+	public double[] filter(int[] obs, InferenceWorkspace workspace){
+		double[] belief = forward(obs, workspace);
+		return Arrays.copyOf(belief, numVariables);
+	}
+
+	public double[] filter(int[] obs){
+		InferenceWorkspace workspace = pool.acquire();
+		try{
+			return filter(obs, workspace);
+		}
+		finally{
+			pool.release(workspace);
+		}
+	}
+
+	//Filtering without allocation: the belief state after the last observation is copied into out
+	public void filterInto(int[] obs, InferenceWorkspace workspace, double[] out){
+		double[] belief = forward(obs, workspace);
+		System.arraycopy(belief, 0, out, 0, numVariables);
+	}
+
+	//One step of filtering into a caller supplied array, next = a*O*T*previous
+	//
+	//returns the normalizer P(e_t|e_1:t-1)
+	//parameters: double[] previous belief at t-1, int observation at t, double[] next receives the belief at t (must not be previous)
+	public double filterStep(double[] previous, int observation, double[] next){
+		return forwardStep(previous, observation, next, next);
+	}
+
+	//Compute log P(e_1:t). Filtering normalizes at every step, the log of the normalizers add up to the log likelihood
+	//so long sequences don't underflow
+	public double logLikelihood(int[] obs, InferenceWorkspace workspace){
+		forward(obs, workspace);
+		return workspace.logLikelihood;
+	}
+
+	public double logLikelihood(int[] obs){
+		InferenceWorkspace workspace = pool.acquire();
+		try{
+			return logLikelihood(obs, workspace);
+		}
+		finally{
+			pool.release(workspace);
+		}
+	}
+
+	//Compute P(X_k|e_1:t) for every k
+	//
+	//returns obs.length+1 belief states, time 0 is the initial state (the same layout as ProbabilisticReasoningAgent.smoothing())
+	//parameters: int[] obs is the sequence of observations, InferenceWorkspace workspace scratch space for this query
+	public double[][] smoothing(int[] obs, InferenceWorkspace workspace){
+		double[][] smoothed = new double[obs.length + 1][numVariables];
+		smoothingInto(obs, workspace, smoothed);
+		return smoothed;
+	}
+
+	//Smoothing without allocation, into caller supplied rows
+	//parameters: double[][] smoothed has at least obs.length+1 rows of numVariables
+	public void smoothingInto(int[] obs, InferenceWorkspace workspace, double[][] smoothed){
+		checkWorkspace(workspace);
+		System.arraycopy(prior, 0, smoothed[0], 0, numVariables);
+
+		//forward pass, keep every normalized forward message
+		for (int t=0; t<obs.length; t++){
+			forwardStep(smoothed[t], obs[t], smoothed[t+1], workspace.scratch);
+		}
+
+		//backward pass, the forward messages are turned into smoothed belief states in place
+		double[] backward = workspace.belief;
+		Arrays.fill(backward, 1.0);
+		for (int t=obs.length; t>0; t--){
+			double[] current = smoothed[t];
+			for (int i=0; i<numVariables; i++){
+				current[i] *= backward[i];
+			}
+			normalize(current);
+
+			backwardStep(backward, obs[t-1], workspace.scratch);
+			double[] swap = backward;
+			backward = workspace.scratch;
+			workspace.scratch = swap;
+		}
+		workspace.belief = backward;
+	}
+
+	public double[][] smoothing(int[] obs){
+		InferenceWorkspace workspace = pool.acquire();
+		try{
+			return smoothing(obs, workspace);
+		}
+		finally{
+			pool.release(workspace);
+		}
+	}
+
+	//Compute the Most Likely Path through the state space given a sequence of observations
+	//viterbi runs on log probabilities so long sequences don't underflow
+	//
+	//returns path[t] the variable at time t+1
+	//parameters: int[] obs is the sequence of observations, InferenceWorkspace workspace scratch space for this query
+	public int[] mostLikelySequence(int[] obs, InferenceWorkspace workspace){
+		int[] path = new int[obs.length];
+		mostLikelySequenceInto(obs, workspace, path);
+		return path;
+	}
+
+	//Viterbi without allocation: the path is written into a caller supplied array,
+	//the backpointers live in the workspace and are reused by the next query
+	//
+	//returns the log probability of the path
+	//parameters: int[] path has room for at least obs.length variables
+	public double mostLikelySequenceInto(int[] obs, InferenceWorkspace workspace, int[] path){
+		checkWorkspace(workspace);
+		if (obs.length == 0){
+			return 0;
+		}
+
+		int[] backpointers = workspace.backpointers((long) obs.length*numVariables);
+
+		double[] previous = workspace.belief;
+		double[] current = workspace.scratch;
+		for (int i=0; i<numVariables; i++){
+			previous[i] = Math.log(prior[i]);
+		}
+
+		for (int t=0; t<obs.length; t++){
+			viterbiStep(previous, obs[t], current, backpointers, t*numVariables);
+			double[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return backtrack(previous, backpointers, obs.length, path);
+	}
+
+	public int[] mostLikelySequence(int[] obs){
+		InferenceWorkspace workspace = pool.acquire();
+		try{
+			return mostLikelySequence(obs, workspace);
+		}
+		finally{
+			pool.release(workspace);
+		}
+	}
+
+	//run the forward algorithm in the workspace, ping-ponging between its two buffers
+	//returns the workspace buffer holding the last belief state
+	private double[] forward(int[] obs, InferenceWorkspace workspace){
+		checkWorkspace(workspace);
+		System.arraycopy(prior, 0, workspace.belief, 0, numVariables);
+		workspace.logLikelihood = 0;
+
+		for (int t=0; t<obs.length; t++){
+			if (obs[t] == MISSING){
+				//skip a gap in one go, it doesn't change the likelihood
+				int end = t + 1;
+				while (end < obs.length && obs[end] == MISSING){
+					end++;
+				}
+				if (powers.advance(workspace.belief, end - t, workspace.scratch) != workspace.belief){
+					workspace.swap();
+				}
+				t = end - 1;
+				continue;
+			}
+			workspace.logLikelihood += Math.log(forwardStep(workspace.belief, obs[t], workspace.scratch, workspace.scratch));
+			workspace.swap();
+		}
+		return workspace.belief;
+	}
+
+	//One step of filtering: next = a*O*T*previous
+	//
+	//returns the normalizer P(e_t|e_1:t-1)
+	//parameters: double[] previous belief at t-1, int observation at t, double[] next receives the belief at t,
+	//double[] scratch may be the same array as next
+	double forwardStep(double[] previous, int observation, double[] next, double[] scratch){
+		predict(previous, scratch);
+		double sum = 0;
+		byte[] symbols = kernels.symbols;
+		if (symbols != null && observation != MISSING){
+			double[] likelihood = kernels.symbolEmission[observation];
+			for (int i=0; i<numVariables; i++){
+				double p = scratch[i]*likelihood[symbols[i] & 0xff];
+				next[i] = p;
+				sum += p;
+			}
+		}
+		else{
+			double[] likelihood = emission(observation);
+			for (int i=0; i<numVariables; i++){
+				double p = scratch[i]*likelihood[i];
+				next[i] = p;
+				sum += p;
+			}
+		}
+		if (sum > 0){
+			double scale = 1/sum;
+			for (int i=0; i<numVariables; i++){
+				next[i] *= scale;
+			}
+		}
+		return sum;
+	}
+
+	//prediction without an observation: next = T*previous
+	void predict(double[] previous, double[] next){
+		Kernels k = kernels;
+		switch (k.transition){
+		case Kernels.STENCIL:
+			int moves = k.moves;
+			int[] sources = k.sources;
+			double[] moveProbabilities = k.moveProbabilities;
+			double[] stay = k.stay;
+			for (int i=0; i<numVariables; i++){
+				double p = stay[i]*previous[i];
+				int base = i*moves;
+				for (int m=0; m<moves; m++){
+					p += moveProbabilities[m]*previous[sources[base + m]];
+				}
+				next[i] = p;
+			}
+			break;
+		case Kernels.DENSE:
+			double[] dense = k.dense;
+			for (int i=0; i<numVariables; i++){
+				double p = 0;
+				int base = i*numVariables;
+				for (int j=0; j<numVariables; j++){
+					p += dense[base + j]*previous[j];
+				}
+				next[i] = p;
+			}
+			break;
+		case Kernels.DIAGONAL:
+			double[] diagonal = k.diagonal;
+			for (int i=0; i<numVariables; i++){
+				next[i] = diagonal[i]*previous[i];
+			}
+			break;
+		default:
+			SlotRows r = rows;
+			int slots = r.slots;
+			int[] columns = r.columns;
+			double[] probabilities = r.probabilities;
+			for (int i=0; i<numVariables; i++){
+				double p = 0;
+				int end = (i+1)*slots;
+				for (int s=i*slots; s<end; s++){
+					p += probabilities[s]*previous[columns[s]];
+				}
+				next[i] = p;
+			}
+		}
+	}
+
+	//One step of the backward algorithm: previous[j] = a*sum_i T[i][j]*O[observation][i]*next[i]
+	//parameters: double[] next the backward message at t, int observation at t, double[] previous receives the message at t-1
+	void backwardStep(double[] next, int observation, double[] previous){
+		Arrays.fill(previous, 0, numVariables, 0.0);
+		Kernels k = kernels;
+		byte[] symbols = observation == MISSING ? null : k.symbols;
+		double[] likelihood = symbols != null ? k.symbolEmission[observation] : emission(observation);
+		switch (k.transition){
+		case Kernels.STENCIL:
+			int moves = k.moves;
+			int[] sources = k.sources;
+			double[] moveProbabilities = k.moveProbabilities;
+			double[] stay = k.stay;
+			for (int i=0; i<numVariables; i++){
+				double weight = (symbols != null ? likelihood[symbols[i] & 0xff] : likelihood[i])*next[i];
+				if (weight == 0){
+					continue;
+				}
+				previous[i] += stay[i]*weight;
+				int base = i*moves;
+				for (int m=0; m<moves; m++){
+					previous[sources[base + m]] += moveProbabilities[m]*weight;
+				}
+			}
+			break;
+		case Kernels.DENSE:
+			double[] dense = k.dense;
+			for (int i=0; i<numVariables; i++){
+				double weight = (symbols != null ? likelihood[symbols[i] & 0xff] : likelihood[i])*next[i];
+				if (weight == 0){
+					continue;
+				}
+				int base = i*numVariables;
+				for (int j=0; j<numVariables; j++){
+					previous[j] += dense[base + j]*weight;
+				}
+			}
+			break;
+		case Kernels.DIAGONAL:
+			double[] diagonal = k.diagonal;
+			for (int i=0; i<numVariables; i++){
+				previous[i] = diagonal[i]*(symbols != null ? likelihood[symbols[i] & 0xff] : likelihood[i])*next[i];
+			}
+			break;
+		default:
+			SlotRows r = rows;
+			int slots = r.slots;
+			int[] columns = r.columns;
+			double[] probabilities = r.probabilities;
+			for (int i=0; i<numVariables; i++){
+				double weight = (symbols != null ? likelihood[symbols[i] & 0xff] : likelihood[i])*next[i];
+				if (weight == 0){
+					continue;
+				}
+				int end = (i+1)*slots;
+				for (int s=i*slots; s<end; s++){
+					previous[columns[s]] += probabilities[s]*weight;
+				}
+			}
+		}
+		normalize(previous);
+	}
+
+	//One step of viterbi in log space: current[i] = logO[observation][i] + max_j logT[i][j] + previous[j]
+	//the best j for each i is written to backpointers[offset + i]
+	void viterbiStep(double[] previous, int observation, double[] current, int[] backpointers, int offset){
+		double[] likelihood = logEmission(observation);
+		SlotRows r = slotRows();
+		int slots = r.slots;
+		int[] columns = r.columns;
+		double[] logProbabilities = r.logProbabilities;
+		for (int i=0; i<numVariables; i++){
+			int best = i;
+			double bestLog = Double.NEGATIVE_INFINITY;
+			int end = (i+1)*slots;
+			for (int k=i*slots; k<end; k++){
+				double p = logProbabilities[k] + previous[columns[k]];
+				if (p > bestLog){
+					bestLog = p;
+					best = columns[k];
+				}
+			}
+			backpointers[offset + i] = best;
+			current[i] = bestLog + likelihood[i];
+		}
+	}
+
+	//follow the backpointers from the most likely final variable
+	//returns the log probability of the path
+	double backtrack(double[] last, int[] backpointers, int length, int[] path){
+		int best = 0;
+		for (int i=1; i<numVariables; i++){
+			if (last[i] > last[best]){
+				best = i;
+			}
+		}
+		int t = length - 1;
+		path[t] = best;
+		for (; t>0; t--){
+			path[t-1] = backpointers[t*numVariables + path[t]];
+		}
+		return last[best];
+	}
+
+	//scale a belief state so it sums to 1, beliefs that are all 0 are left alone
+	static void normalize(double[] belief){
+		double sum = 0;
+		for (double p: belief){
+			sum += p;
+		}
+		if (sum > 0){
+			double scale = 1/sum;
+			for (int i=0; i<belief.length; i++){
+				belief[i] *= scale;
+			}
+		}
+	}
+
+	private void checkWorkspace(InferenceWorkspace workspace){
+		if (workspace.numVariables() != numVariables){
+			throw new IllegalArgumentException("workspace for " + workspace.numVariables() + " variables used with a model of " + numVariables);
+		}
+	}
+
+	//the sparse transition model: T[i][columns[i*slots + k]] = probabilities[i*slots + k]
+	private static final class SlotRows {
+		final int slots;
+		final int[] columns;
+		final double[] probabilities;
+		final double[] logProbabilities;
+
+		SlotRows(int slots, int[] columns, double[] probabilities, double[] logProbabilities){
+			this.slots = slots;
+			this.columns = columns;
+			this.probabilities = probabilities;
+			this.logProbabilities = logProbabilities;
+		}
+
+		//the nonzero entries of a dense T, as many slots as the fullest row
+		static SlotRows fromDense(double[] dense, int n){
+			int slots = 1;
+			for (int i=0; i<n; i++){
+				int nonZero = 0;
+				for (int j=0; j<n; j++){
+					if (dense[i*n + j] != 0){
+						nonZero++;
+					}
+				}
+				slots = Math.max(slots, nonZero);
+			}
+
+			int[] columns = new int[n*slots];
+			double[] probabilities = new double[n*slots];
+			for (int i=0; i<n; i++){
+				int k = i*slots;
+				for (int j=0; j<n; j++){
+					if (dense[i*n + j] != 0){
+						columns[k] = j;
+						probabilities[k] = dense[i*n + j];
+						k++;
+					}
+				}
+				for (; k<(i+1)*slots; k++){
+					columns[k] = i;
+				}
+			}
+			return new SlotRows(slots, columns, probabilities, log(probabilities));
+		}
+	}
+
+	//the arrays the structured kernels read, besides the sparse rows every model keeps
+	private static final class Kernels {
+
+		static final int SPARSE = 0;
+		static final int STENCIL = 1;
+		static final int DENSE = 2;
+		static final int DIAGONAL = 3;
+
+		//a model built from sparse rows or matrices
+		static final Kernels SPARSE_ROWS = new Kernels(SPARSE, 0);
+
+		final int transition;
+		final int numVariables;
+
+		//STENCIL: T[i][sources[i*moves + m]] += moveProbabilities[m], plus stay[i] on the diagonal.
+		//a move with no source points back at i and stay[i] is T[i][i] less those moves, so it can be negative
+		int moves;
+		int[] sources;
+		double[] moveProbabilities;
+		double[] stay;
+
+		//DENSE: T[i][j] = dense[i*numVariables + j]
+		double[] dense;
+
+		//DIAGONAL: T[i][i] = diagonal[i]
+		double[] diagonal;
+
+		//SYMBOL_INDEXED emissions: P(o | i) = symbolEmission[o][symbols[i] & 0xff], null for dense emissions
+		byte[] symbols;
+		double[][] symbolEmission;
+
+		private Kernels(int transition, int numVariables){
+			this.transition = transition;
+			this.numVariables = numVariables;
+		}
+
+		//empty kernels for the structures the operators declare, setRow() fills them in
+		static Kernels of(TransitionOperator t, EmissionModel e, int n){
+			String structure = t.structure();
+			Kernels k;
+			if (TransitionOperator.STENCIL.equals(structure)){
+				if (!(t instanceof StencilOperator)){
+					throw new IllegalArgumentException("a STENCIL transition model must be a StencilOperator");
+				}
+				StencilOperator stencil = (StencilOperator) t;
+				k = new Kernels(STENCIL, n);
+				k.moves = stencil.numMoves();
+				k.moveProbabilities = new double[k.moves];
+				for (int m=0; m<k.moves; m++){
+					k.moveProbabilities[m] = stencil.moveProbability(m);
+				}
+				k.sources = new int[n*k.moves];
+				k.stay = new double[n];
+			}
+			else if (TransitionOperator.DENSE.equals(structure)){
+				if (n > MAX_DENSE_VARIABLES){
+					throw new IllegalArgumentException("a DENSE transition model can have at most " + MAX_DENSE_VARIABLES + " variables, not " + n);
+				}
+				k = new Kernels(DENSE, n);
+				k.dense = new double[n*n];
+			}
+			else if (TransitionOperator.DIAGONAL.equals(structure)){
+				k = new Kernels(DIAGONAL, n);
+				k.diagonal = new double[n];
+			}
+			else if (TransitionOperator.SPARSE.equals(structure)){
+				k = new Kernels(SPARSE, n);
+			}
+			else{
+				throw new IllegalArgumentException("unknown transition structure " + structure);
+			}
+
+			structure = e.structure();
+			if (EmissionModel.SYMBOL_INDEXED.equals(structure)){
+				if (!(e instanceof SymbolEmissionModel)){
+					throw new IllegalArgumentException("a SYMBOL_INDEXED emission model must be a SymbolEmissionModel");
+				}
+				SymbolEmissionModel symbolic = (SymbolEmissionModel) e;
+				if (symbolic.numSymbols() > 256){
+					throw new IllegalArgumentException("at most 256 symbols, not " + symbolic.numSymbols());
+				}
+				k.symbols = new byte[n];
+				k.symbolEmission = new double[e.numObservations()][symbolic.numSymbols()];
+				for (int o=0; o<e.numObservations(); o++){
+					for (int s=0; s<symbolic.numSymbols(); s++){
+						k.symbolEmission[o][s] = symbolic.symbolProbability(o, s);
+					}
+				}
+			}
+			else if (!EmissionModel.DENSE.equals(structure)){
+				throw new IllegalArgumentException("unknown emission structure " + structure);
+			}
+			return k;
+		}
+
+		//returns whether rows built from these operators can be patched into these kernels: the same structures, moves and symbols.
+		//a dense T is never patched, it has to be rebuilt at the new size anyway
+		boolean fits(TransitionOperator t, EmissionModel e){
+			Kernels other = of(t, e, 0);
+			if (other.transition != transition || other.transition == DENSE || (other.symbols == null) != (symbols == null)){
+				return false;
+			}
+			if (transition == STENCIL && !Arrays.equals(other.moveProbabilities, moveProbabilities)){
+				return false;
+			}
+			return symbols == null || Arrays.deepEquals(other.symbolEmission, symbolEmission);
+		}
+
+		//a copy for a model of n variables, the arrays of the variables both have are kept
+		Kernels resize(int n){
+			Kernels k = new Kernels(transition, n);
+			k.moves = moves;
+			k.moveProbabilities = moveProbabilities;
+			k.symbolEmission = symbolEmission;
+			if (sources != null){
+				k.sources = Arrays.copyOf(sources, n*moves);
+				k.stay = Arrays.copyOf(stay, n);
+			}
+			if (diagonal != null){
+				k.diagonal = Arrays.copyOf(diagonal, n);
+			}
+			if (symbols != null){
+				k.symbols = Arrays.copyOf(symbols, n);
+			}
+			return k;
+		}
+
+		//fill in variable i, whose sparse row is already in columns and probabilities
+		void setRow(int i, TransitionOperator t, EmissionModel e, int[] columns, double[] probabilities, int offset, int slots){
+			switch (transition){
+			case STENCIL:
+				StencilOperator stencil = (StencilOperator) t;
+				double self = selfProbability(i, columns, probabilities, offset, slots);
+				for (int m=0; m<moves; m++){
+					int source = stencil.source(m, i);
+					if (source < 0 || source == i){
+						source = i;
+						self -= moveProbabilities[m];
+					}
+					sources[i*moves + m] = source;
+				}
+				stay[i] = self;
+				break;
+			case DENSE:
+				for (int k=offset; k<offset+slots; k++){
+					dense[i*numVariables + columns[k]] += probabilities[k];
+				}
+				break;
+			case DIAGONAL:
+				for (int k=offset; k<offset+slots; k++){
+					if (columns[k] != i && probabilities[k] != 0){
+						throw new IllegalArgumentException("row " + i + " of a DIAGONAL transition model has an entry off the diagonal");
+					}
+				}
+				diagonal[i] = selfProbability(i, columns, probabilities, offset, slots);
+				break;
+			}
+			if (symbols != null){
+				int symbol = ((SymbolEmissionModel) e).symbol(i);
+				if (symbol < 0 || symbol >= ((SymbolEmissionModel) e).numSymbols()){
+					throw new IllegalArgumentException("variable " + i + " has symbol " + symbol);
+				}
+				symbols[i] = (byte) symbol;
+			}
+		}
+
+		//returns T[i][i]
+		private static double selfProbability(int i, int[] columns, double[] probabilities, int offset, int slots){
+			double p = 0;
+			for (int k=offset; k<offset+slots; k++){
+				if (columns[k] == i){
+					p += probabilities[k];
+				}
+			}
+			return p;
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/**
+ * HierarchicalFilter is a coarse-to-fine filter for very large mazes
+ *
+ * the maze is cut into blockSize x blockSize blocks. A block is either coarse, when it holds so little probability
+ * that only its total mass is tracked (spread evenly over its squares), or active, when its squares are filtered at
+ * full resolution with the SensorRobot's model. A coarse block whose mass reaches the refine threshold becomes active,
+ * and an active block whose mass falls below half of it is folded back into a single number
+ *
+ * each step:
+ *   active squares pull mass from their predecessors, reading coarse predecessors as mass/size of their block
+ *   coarse blocks receive mass from active squares exactly and from other coarse blocks through the block transition
+ *   model A[C][B] = (1/|B|) * sum over j in B, i in C of T[i][j]
+ *   active squares are weighted by their emission probability, coarse blocks by the average over their squares
+ * mass leaving a block is always received somewhere, so the total is conserved across block boundaries.
+ * with a refine threshold of 0 every block is active and the result is exact filtering
+ *
+ * the cost of a step is proportional to the number of blocks plus the number of active squares,
+ * rather than the number of squares in the maze
+ */
+
+package PROT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HierarchicalFilter {
+
+	//an active block is folded back once its mass drops below this fraction of the refine threshold
+	private static final double COARSEN_RATIO = .5;
+
+	private final HiddenMarkovModel model;
+	private final int numVariables;
+	private final double refineThreshold;
+
+	//block structure
+	private final int numBlocks;
+	private final int[] blockOf; //block of each variable
+	private final int[] blockStart; //the variables of block b are members[blockStart[b] .. blockStart[b+1])
+	private final int[] members;
+	private final int[] boundaryEnd; //members[blockStart[b] .. boundaryEnd[b]) have a successor in another block
+	private final double[] share; //1/size of each block
+
+	//outgoing edges of each variable: successors[successorStart[j] ..] with probability T[i][j]
+	private final int[] successorStart;
+	private final int[] successors;
+	private final double[] successorProbabilities;
+
+	//block transition model stored by source block: A[targets[k]][b] = weights[k] for k in targetStart[b] ..
+	private final int[] targetStart;
+	private final int[] targets;
+	private final double[] weights;
+
+	private final double[][] blockEmission; //[observation][block], average emission over the block
+	private final double[] noEvidence; //the block emissions of a missing observation
+
+	//belief state
+	private final boolean[] active;
+	private final double[] fine; //P(X_t = i) for variables in active blocks
+	private final double[] mass; //total probability of each coarse block
+	private final double[] nextFine;
+	private final double[] nextMass;
+	private final double[] activeMass; //total probability of each active block after the last step
+	private final int[] activeBlocks;
+	private int numActive;
+	private double logLikelihood;
+
+	//parameters: SensorRobot robot the full resolution model, int blockSize squares per block side,
+	//double refineThreshold the mass at which a block is filtered at full resolution
+	public HierarchicalFilter(SensorRobot robot, int blockSize, double refineThreshold){
+		this.model = robot.getModel();
+		this.numVariables = model.numVariables();
+		this.refineThreshold = refineThreshold;
+
+		//assign variables to blocks, numbering only blocks that contain a legal square
+		Maze maze = robot.getMaze();
+		int blocksWide = (maze.width + blockSize - 1)/blockSize;
+		HashMap<Integer, Integer> blockIds = new HashMap<Integer, Integer>();
+		blockOf = new int[numVariables];
+		for (int i=0; i<numVariables; i++){
+			int location = robot.variables[i];
+			int key = (location%maze.width)/blockSize + ((location/maze.width)/blockSize)*blocksWide;
+			Integer id = blockIds.get(key);
+			if (id == null){
+				id = blockIds.size();
+				blockIds.put(key, id);
+			}
+			blockOf[i] = id;
+		}
+		numBlocks = blockIds.size();
+
+		blockStart = new int[numBlocks + 1];
+		for (int i=0; i<numVariables; i++){
+			blockStart[blockOf[i] + 1]++;
+		}
+		for (int b=0; b<numBlocks; b++){
+			blockStart[b+1] += blockStart[b];
+		}
+		members = new int[numVariables];
+		int[] fill = Arrays.copyOf(blockStart, numBlocks);
+		for (int i=0; i<numVariables; i++){
+			members[fill[blockOf[i]]++] = i;
+		}
+
+		//invert the transition model so mass can be pushed out of active squares
+		int slots = model.slots();
+		int[] columns = model.columns();
+		double[] probabilities = model.probabilities();
+
+		successorStart = new int[numVariables + 1];
+		for (int k=0; k<columns.length; k++){
+			if (probabilities[k] != 0){
+				successorStart[columns[k] + 1]++;
+			}
+		}
+		for (int j=0; j<numVariables; j++){
+			successorStart[j+1] += successorStart[j];
+		}
+		successors = new int[successorStart[numVariables]];
+		successorProbabilities = new double[successors.length];
+		fill = Arrays.copyOf(successorStart, numVariables);
+		for (int i=0; i<numVariables; i++){
+			for (int k=i*slots; k<(i+1)*slots; k++){
+				if (probabilities[k] != 0){
+					int j = columns[k];
+					successors[fill[j]] = i;
+					successorProbabilities[fill[j]] = probabilities[k];
+					fill[j]++;
+				}
+			}
+		}
+
+		//move the squares on the edge of each block to its front, only they can push mass into other blocks
+		boundaryEnd = new int[numBlocks];
+		share = new double[numBlocks];
+		for (int b=0; b<numBlocks; b++){
+			share[b] = 1.0/(blockStart[b+1] - blockStart[b]);
+			int end = blockStart[b];
+			for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+				int j = members[m];
+				boolean boundary = false;
+				for (int k=successorStart[j]; k<successorStart[j+1] && !boundary; k++){
+					boundary = blockOf[successors[k]] != b;
+				}
+				if (boundary){
+					members[m] = members[end];
+					members[end++] = j;
+				}
+			}
+			boundaryEnd[b] = end;
+		}
+
+		//aggregate the transition model over blocks
+		ArrayList<LinkedHashMap<Integer, Double>> blockTargets = new ArrayList<LinkedHashMap<Integer, Double>>(numBlocks);
+		for (int b=0; b<numBlocks; b++){
+			blockTargets.add(new LinkedHashMap<Integer, Double>());
+		}
+		for (int j=0; j<numVariables; j++){
+			int b = blockOf[j];
+			LinkedHashMap<Integer, Double> row = blockTargets.get(b);
+			for (int k=successorStart[j]; k<successorStart[j+1]; k++){
+				int target = blockOf[successors[k]];
+				Double sum = row.get(target);
+				row.put(target, (sum == null ? 0 : sum) + successorProbabilities[k]*share[b]);
+			}
+		}
+		targetStart = new int[numBlocks + 1];
+		for (int b=0; b<numBlocks; b++){
+			targetStart[b+1] = targetStart[b] + blockTargets.get(b).size();
+		}
+		targets = new int[targetStart[numBlocks]];
+		weights = new double[targets.length];
+		for (int b=0; b<numBlocks; b++){
+			int k = targetStart[b];
+			for (Map.Entry<Integer, Double> entry: blockTargets.get(b).entrySet()){
+				targets[k] = entry.getKey();
+				weights[k] = entry.getValue();
+				k++;
+			}
+		}
+
+		blockEmission = new double[model.numObservations()][numBlocks];
+		for (int o=0; o<model.numObservations(); o++){
+			for (int b=0; b<numBlocks; b++){
+				double sum = 0;
+				for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+					sum += model.getEmission(o, members[m]);
+				}
+				blockEmission[o][b] = sum*share[b];
+			}
+		}
+
+		noEvidence = new double[numBlocks];
+		Arrays.fill(noEvidence, 1.0);
+
+		active = new boolean[numBlocks];
+		fine = new double[numVariables];
+		nextFine = new double[numVariables];
+		mass = new double[numBlocks];
+		nextMass = new double[numBlocks];
+		activeMass = new double[numBlocks];
+		activeBlocks = new int[numBlocks];
+
+		reset();
+	}
+
+	//start again from the prior
+	public void reset(){
+		Arrays.fill(active, false);
+		Arrays.fill(fine, 0);
+		Arrays.fill(mass, 0);
+		Arrays.fill(activeMass, 0);
+		numActive = 0;
+		logLikelihood = 0;
+
+		for (int i=0; i<numVariables; i++){
+			fine[i] = model.getPrior(i);
+		}
+		for (int b=0; b<numBlocks; b++){
+			active[b] = true;
+			activeBlocks[numActive++] = b;
+			for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+				activeMass[b] += fine[members[m]];
+			}
+		}
+		rebalance();
+	}
+
+	//filter a sequence of observations
+	//returns the belief state after the last observation
+	public double[] filter(int[] obs){
+		for (int o: obs){
+			step(o);
+		}
+		return getBelief(new double[numVariables]);
+	}
+
+	//advance the belief state by one observation
+	public void step(int observation){
+		Arrays.fill(nextMass, 0);
+
+		int slots = model.slots();
+		int[] columns = model.columns();
+		double[] probabilities = model.probabilities();
+		double[] likelihood = model.emission(observation);
+
+		//active squares pull from their predecessors, coarse predecessors are spread evenly over their block
+		for (int a=0; a<numActive; a++){
+			int b = activeBlocks[a];
+			for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+				int i = members[m];
+				double p = 0;
+				for (int k=i*slots; k<(i+1)*slots; k++){
+					double q = probabilities[k];
+					if (q == 0){
+						continue;
+					}
+					int j = columns[k];
+					int source = blockOf[j];
+					p += q*(active[source] ? fine[j] : mass[source]*share[source]);
+				}
+				nextFine[i] = p*likelihood[i];
+			}
+		}
+
+		//active squares on the edge of their block push into coarse blocks
+		for (int a=0; a<numActive && numActive<numBlocks; a++){
+			int b = activeBlocks[a];
+			for (int m=blockStart[b]; m<boundaryEnd[b]; m++){
+				int j = members[m];
+				double p = fine[j];
+				if (p == 0){
+					continue;
+				}
+				for (int k=successorStart[j]; k<successorStart[j+1]; k++){
+					int target = blockOf[successors[k]];
+					if (!active[target]){
+						nextMass[target] += successorProbabilities[k]*p;
+					}
+				}
+			}
+		}
+
+		//coarse blocks move mass between coarse blocks
+		for (int b=0; b<numBlocks; b++){
+			if (active[b] || mass[b] == 0){
+				continue;
+			}
+			for (int k=targetStart[b]; k<targetStart[b+1]; k++){
+				if (!active[targets[k]]){
+					nextMass[targets[k]] += weights[k]*mass[b];
+				}
+			}
+		}
+
+		//weigh by the observation and normalize
+		double total = 0;
+		double[] blockLikelihood = observation == HiddenMarkovModel.MISSING ? noEvidence : blockEmission[observation];
+		for (int b=0; b<numBlocks; b++){
+			if (active[b]){
+				double sum = 0;
+				for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+					int i = members[m];
+					fine[i] = nextFine[i];
+					sum += fine[i];
+				}
+				activeMass[b] = sum;
+				total += sum;
+			}
+			else{
+				mass[b] = nextMass[b]*blockLikelihood[b];
+				total += mass[b];
+			}
+		}
+		if (total > 0){
+			double scale = 1/total;
+			for (int a=0; a<numActive; a++){
+				int b = activeBlocks[a];
+				for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+					fine[members[m]] *= scale;
+				}
+			}
+			for (int b=0; b<numBlocks; b++){
+				mass[b] *= scale;
+				activeMass[b] *= scale;
+			}
+		}
+		logLikelihood += Math.log(total);
+
+		rebalance();
+	}
+
+	//refine coarse blocks that gained mass and fold active blocks that lost it
+	private void rebalance(){
+		for (int b=0; b<numBlocks; b++){
+			if (active[b]){
+				if (activeMass[b] < refineThreshold*COARSEN_RATIO){
+					active[b] = false;
+					mass[b] = activeMass[b];
+					activeMass[b] = 0;
+					for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+						fine[members[m]] = 0;
+					}
+				}
+			}
+			else if (mass[b] >= refineThreshold){
+				active[b] = true;
+				double each = mass[b]*share[b];
+				for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+					fine[members[m]] = each;
+				}
+				activeMass[b] = mass[b];
+				mass[b] = 0;
+			}
+		}
+
+		numActive = 0;
+		for (int b=0; b<numBlocks; b++){
+			if (active[b]){
+				activeBlocks[numActive++] = b;
+			}
+		}
+	}
+
+	//Copy the full resolution belief state into a caller supplied array, coarse blocks are spread evenly over their squares
+	//returns the array
+	public double[] getBelief(double[] into){
+		for (int b=0; b<numBlocks; b++){
+			double each = mass[b]*share[b];
+			for (int m=blockStart[b]; m<blockStart[b+1]; m++){
+				int i = members[m];
+				into[i] = active[b] ? fine[i] : each;
+			}
+		}
+		return into;
+	}
+
+	//log P(e_1:t) under the coarse-to-fine approximation
+	public double logLikelihood(){
+		return logLikelihood;
+	}
+
+	public int numBlocks(){
+		return numBlocks;
+	}
+
+	public int numActiveBlocks(){
+		return numActive;
+	}
+
+	//number of squares currently filtered at full resolution
+	public int numActiveVariables(){
+		int count = 0;
+		for (int a=0; a<numActive; a++){
+			count += blockStart[activeBlocks[a]+1] - blockStart[activeBlocks[a]];
+		}
+		return count;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * InferenceBenchmark times the zero allocation inference methods of HiddenMarkovModel and reports
+ * how many bytes the benchmark thread allocated per time step once the workspace is warmed up
+ *
+ * usage: InferenceBenchmark maze.maz [number of observations] [repetitions] [state ordering | all]
+ *
+ * allocation is read from the thread's allocation counter (com.sun.management.ThreadMXBean),
+ * which HotSpot based JVMs provide. Steady state should report 0 bytes per step
+ *
+ * with a state ordering (see StateOrdering), or all of them, the benchmark is repeated with the variables numbered
+ * in that order, and prints how many neighboring squares share a cache line or a page. Java can't read the hardware counters,
+ * so to see the cache misses themselves run the benchmark under perf, once per ordering:
+ *   perf stat -e cache-references,cache-misses java PROT.InferenceBenchmark big.maz 1000 100 hilbert
+ */
+
+package PROT;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class InferenceBenchmark {
+
+	private static final int WARMUP = 20;
+
+	private final HiddenMarkovModel model;
+	private final InferenceWorkspace workspace;
+	private final int[] obs;
+
+	//caller supplied outputs
+	private final double[] belief;
+	private final double[][] smoothed;
+	private final int[] path;
+
+	private final com.sun.management.ThreadMXBean threads;
+
+	public InferenceBenchmark(HiddenMarkovModel model, int length, long seed){
+		this.model = model;
+		this.workspace = model.newWorkspace();
+
+		Random random = new Random(seed);
+		obs = new int[length];
+		for (int t=0; t<length; t++){
+			obs[t] = random.nextInt(model.numObservations());
+		}
+
+		belief = new double[model.numVariables()];
+		smoothed = new double[length + 1][model.numVariables()];
+		path = new int[length];
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+	}
+
+	//run an algorithm repeatedly, printing nanoseconds and allocated bytes per time step
+	//returns nanoseconds per time step
+	public double run(String algorithm, int repetitions){
+		for (int i=0; i<WARMUP; i++){
+			runOnce(algorithm);
+		}
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i=0; i<repetitions; i++){
+			runOnce(algorithm);
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		double steps = (double) repetitions*obs.length;
+		double nanosPerStep = elapsed/steps;
+		System.out.println(String.format("%-10s %10.1f ns/step %10s bytes/step", algorithm, nanosPerStep,
+				allocated < 0 ? "n/a" : String.format("%.3f", allocated/steps)));
+		return nanosPerStep;
+	}
+
+	private void runOnce(String algorithm){
+		if (algorithm.equals(BatchRunner.FILTER)){
+			model.filterInto(obs, workspace, belief);
+		}
+		else if (algorithm.equals(BatchRunner.SMOOTH)){
+			model.smoothingInto(obs, workspace, smoothed);
+		}
+		else{
+			model.mostLikelySequenceInto(obs, workspace, path);
+		}
+	}
+
+	//bytes allocated by this thread so far, -1 if the JVM doesn't count them
+	private long allocatedBytes(){
+		if (threads == null || !threads.isThreadAllocatedMemorySupported()){
+			return -1;
+		}
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static void main(String[] args){
+		if (args.length < 1){
+			System.err.println("usage: InferenceBenchmark maze.maz [number of observations] [repetitions] [state ordering | all]");
+			System.exit(2);
+		}
+		Maze maze = Maze.readFromFile(args[0]);
+		if (maze == null){
+			System.err.println("could not read maze " + args[0]);
+			System.exit(1);
+		}
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		String[] orderings = {StateOrdering.ROW_MAJOR};
+		if (args.length > 3){
+			orderings = args[3].equals("all") ? StateOrdering.ORDERINGS : new String[]{args[3]};
+		}
+
+		for (String ordering: orderings){
+			SensorRobot robot = new SensorRobot(maze, ordering);
+			System.out.println(String.format("%s (%s): %d variables, %d observations, neighbors within a cache line %.3f, within a page %.3f",
+					args[0], ordering, robot.variables.length, length,
+					StateOrdering.neighborsWithin(robot.getModel(), 8), StateOrdering.neighborsWithin(robot.getModel(), 512)));
+
+			InferenceBenchmark benchmark = new InferenceBenchmark(robot.getModel(), length, 42);
+			benchmark.run(BatchRunner.FILTER, repetitions);
+			benchmark.run(BatchRunner.SMOOTH, repetitions);
+			benchmark.run(BatchRunner.VITERBI, repetitions);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * InferenceClient is a robot-side connection to an InferenceServer
+ *
+ * InferenceServer.localClient() talks to a server in the same process by calling it directly, and
+ * InferenceServer.connect() talks to one over a socket, so code written against this interface (and tests)
+ * can switch between them. Observations are only queued by observe(); they have all been applied by the time
+ * estimate() or getBelief() answers
+ */
+
+package PROT;
+
+import java.io.IOException;
+
+public interface InferenceClient {
+
+	//Start tracking a robot
+	//
+	//returns the new session's id
+	//parameters: String maze a maze the server holds, boolean smoothing keep the whole log so past belief states
+	//can be smoothed, otherwise only the latest filtered belief state is kept
+	public long open(String maze, boolean smoothing) throws IOException, InterruptedException;
+
+	//queue observations for a session, waiting while the server is too far behind
+	public void observe(long session, int[] obs) throws IOException, InterruptedException;
+
+	//returns where the robot most likely is after every observation sent so far
+	public InferenceServer.Estimate estimate(long session) throws IOException, InterruptedException;
+
+	//returns P(X_t|e_1:T) given every observation sent so far, for a filtering session only the latest t
+	public double[] getBelief(long session, int t) throws IOException, InterruptedException;
+
+	//stop tracking a robot
+	public void close(long session) throws IOException, InterruptedException;
+
+	//send anything buffered and release the connection, the server's sessions stay open
+	public void disconnect() throws IOException;
+}
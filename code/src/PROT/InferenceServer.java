@@ -0,0 +1,1059 @@
+/**
+ * InferenceServer tracks many robots at once, each sending a stream of color readings
+ *
+ * the server holds one SensorRobot per maze, and every robot tracked in that maze shares its model. Each robot
+ * gets a session: a filter (the latest belief state, constant memory) or a SmoothingSession (the whole log,
+ * smoothed as it grows). Sessions are spread over a fixed set of worker threads, one per processor by default,
+ * and a session is only ever touched by its own worker, so sessions need no locks and their updates are applied
+ * in the order they were sent.
+ *
+ * updates are applied in micro-batches: a worker takes everything waiting in its queue (up to the batch size),
+ * groups it by maze and then by session, and applies each session's observations in one go, so the shared model
+ * stays in cache across the sessions of a maze and a smoothing session walks back once per batch, not once per
+ * reading. Each worker's queue is bounded; when it fills, observe() waits (or tryObserve() gives up), and a socket
+ * connection stops reading, which pushes back on the robot through TCP. Latency is bounded by the queue size
+ * over the throughput, so the queue should hold about as much work as the latency budget allows.
+ *
+ * robots connect over a local socket (listen()) with a line based protocol, or in-process through
+ * localClient(), which answers the same way without the socket:
+ *
+ *   OPEN maze [filter|smooth]  ->  OK id
+ *   OBS id readings...         ->  (no reply, readings as in an observation log, ? for a missing one)
+ *   EST id                     ->  EST id t variable x y probability logLikelihood
+ *   BELIEF id t                ->  BELIEF id t p_0 p_1 ... in the order of the maze's variables
+ *   CLOSE id                   ->  OK id
+ *
+ * a command that fails answers ERROR message. A bad OBS has no reply of its own, so the connection's next command
+ * is not run and answers with the error instead
+ *
+ * with setSnapshots(), every session's belief state is saved to a SnapshotStore after every so many observations
+ * and when it's closed. A server that restarts calls restore() to pick every robot up where it was, under the same
+ * session id, instead of starting it over from the uniform prior
+ *
+ * Java 7 has no virtual threads, so sessions are not threads of their own: they are multiplexed over the
+ * worker threads, which is what lets their updates be batched. A socket connection does get a thread of its own to
+ * read from, so at most maxConnections are served at once and the rest wait in the listen backlog until one closes.
+ * Robots that share a connection, or use localClient(), cost no thread at all
+ *
+ * after shutdown() every call fails with an IllegalStateException, and so does every question still waiting for
+ * an answer, instead of waiting for a worker that has stopped
+ *
+ * usage: InferenceServer port [-s snapshot file] maze.maz ...
+ */
+
+package PROT;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InferenceServer {
+
+	//waiting updates each worker holds before observe() blocks
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	//most updates a worker applies in one batch
+	public static final int DEFAULT_MAX_BATCH = 512;
+
+	//observations between checkpoints of a session when main() is given a snapshot file
+	private static final int SNAPSHOT_INTERVAL = 100;
+
+	//socket connections served at once by default
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+	//main() compacts the snapshot file once it holds this many records for every session in it
+	private static final double COMPACT_FACTOR = 4;
+
+	public static final String FILTER = "filter";
+	public static final String SMOOTH = "smooth";
+
+	private final ConcurrentHashMap<String, MazeEntry> mazes = new ConcurrentHashMap<String, MazeEntry>();
+	private final AtomicInteger numMazes = new AtomicInteger();
+
+	private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	private final AtomicLong nextSession = new AtomicLong(1);
+
+	private final Worker[] workers;
+	private final int maxBatch;
+	private final ExecutorService threads;
+
+	private volatile EstimateListener listener;
+
+	//where sessions are checkpointed, and how many observations apart
+	private volatile SnapshotStore snapshots;
+	private volatile int snapshotInterval;
+
+	private ServerSocket serverSocket;
+	private final Semaphore connections; //a permit for every connection being served
+
+	private volatile boolean closed = false;
+
+	//observations applied and batches run, over all workers
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	//told where a robot most likely is after every batch that moved it
+	public interface EstimateListener {
+		//called on a worker thread, which can't apply other updates until it returns
+		public void estimated(Estimate estimate);
+	}
+
+	//where a robot most likely is
+	public static class Estimate {
+		public final long session;
+		public final int time; //observations applied so far
+		public final int variable; //the most likely variable
+		public final int x;
+		public final int y;
+		public final double probability; //P(X_t = variable|e_1:t)
+		public final double logLikelihood; //log P(e_1:t)
+
+		Estimate(long session, int time, int variable, int x, int y, double probability, double logLikelihood){
+			this.session = session;
+			this.time = time;
+			this.variable = variable;
+			this.x = x;
+			this.y = y;
+			this.probability = probability;
+			this.logLikelihood = logLikelihood;
+		}
+
+		public String toString(){
+			return "EST " + session + " " + time + " " + variable + " " + x + " " + y + " " + probability + " " + logLikelihood;
+		}
+	}
+
+	//a server with one worker per processor
+	public InferenceServer(){
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH);
+	}
+
+	public InferenceServer(int numWorkers, int queueCapacity, int maxBatch){
+		this(numWorkers, queueCapacity, maxBatch, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	//parameters: int numWorkers threads applying updates, int queueCapacity waiting updates per worker before
+	//senders are made to wait, int maxBatch most updates applied in one batch, int maxConnections socket connections
+	//served at once
+	public InferenceServer(int numWorkers, int queueCapacity, int maxBatch, int maxConnections){
+		if (numWorkers < 1 || queueCapacity < 1 || maxBatch < 1 || maxConnections < 1){
+			throw new IllegalArgumentException("workers, queue capacity, batch size and connections must be at least 1");
+		}
+		this.maxBatch = maxBatch;
+		connections = new Semaphore(maxConnections);
+		threads = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "inference server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		workers = new Worker[numWorkers];
+		for (int w=0; w<numWorkers; w++){
+			workers[w] = new Worker(queueCapacity);
+			threads.execute(workers[w]);
+		}
+	}
+
+	//Add a maze robots can be tracked in, building its model
+	public void addMaze(String name, Maze maze){
+		addRobot(name, new SensorRobot(maze));
+	}
+
+	//Add a maze by its robot, whose model every session in the maze shares.
+	//sessions opened after a live edit of the maze use the edited model, open sessions keep the one they started with
+	public void addRobot(String name, SensorRobot robot){
+		if (mazes.putIfAbsent(name, new MazeEntry(numMazes.getAndIncrement(), robot)) != null){
+			throw new IllegalArgumentException("there is already a maze called " + name);
+		}
+	}
+
+	//returns the robot of a maze, or null
+	public SensorRobot getRobot(String maze){
+		MazeEntry entry = mazes.get(maze);
+		return entry == null ? null : entry.robot;
+	}
+
+	//be told of every robot's new estimate after each batch, null to stop
+	public void setListener(EstimateListener listener){
+		this.listener = listener;
+	}
+
+	//Checkpoint every session to a store after every interval observations, and record when it's closed
+	//parameters: SnapshotStore store or null to stop, int interval observations between checkpoints of a session
+	public void setSnapshots(SnapshotStore store, int interval){
+		if (interval < 1){
+			throw new IllegalArgumentException("interval must be at least one observation");
+		}
+		snapshotInterval = interval;
+		snapshots = store;
+	}
+
+	//Checkpoint every session now, after the observations already queued, and force the store to disk
+	public void checkpoint() throws InterruptedException{
+		SnapshotStore store = snapshots;
+		if (store == null){
+			throw new IllegalStateException("no snapshot store, see setSnapshots()");
+		}
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (Session s: sessions.values()){
+			Result result = new Result();
+			put(new Task(Task.CHECKPOINT, s, null, 0, result));
+			results.add(result);
+		}
+		for (Result result: results){
+			try{
+				result.get();
+			}
+			catch (IllegalArgumentException e){
+				//closed in the meantime
+			}
+		}
+		store.force();
+	}
+
+	//Reopen the sessions saved in a store, with the ids and belief states they had. A session is only restored
+	//into a maze whose model has the fingerprint it was saved with, the others are skipped
+	//
+	//returns the number of sessions restored
+	public int restore(SnapshotStore store) throws IOException{
+		HashMap<Long, MazeEntry> byFingerprint = new HashMap<Long, MazeEntry>();
+		for (MazeEntry entry: mazes.values()){
+			byFingerprint.put(((HiddenMarkovModel) entry.snapshot()[0]).fingerprint(), entry);
+		}
+
+		int restored = 0;
+		for (SnapshotStore.Snapshot snapshot: store.restore()){
+			MazeEntry entry = byFingerprint.get(snapshot.fingerprint);
+			if (entry == null || sessions.containsKey(snapshot.session)){
+				continue;
+			}
+			long id = snapshot.session;
+			Worker worker = workers[(int) (id % workers.length)];
+			sessions.put(id, new Session(id, entry, worker, snapshot.smoothing, snapshot));
+			restored++;
+
+			//new sessions are numbered after every restored one
+			long next = nextSession.get();
+			while (next <= id && !nextSession.compareAndSet(next, id + 1)){
+				next = nextSession.get();
+			}
+		}
+		return restored;
+	}
+
+	//Start tracking a robot
+	//
+	//returns the session's id
+	//parameters: String maze, boolean smoothing keep the whole log so past belief states can be smoothed
+	public long openSession(String maze, boolean smoothing){
+		checkOpen();
+		MazeEntry entry = mazes.get(maze);
+		if (entry == null){
+			throw new IllegalArgumentException("unknown maze " + maze);
+		}
+		long id = nextSession.getAndIncrement();
+		Worker worker = workers[(int) (id % workers.length)];
+		sessions.put(id, new Session(id, entry, worker, smoothing, null));
+		return id;
+	}
+
+	//Queue observations for a session, waiting while its worker's queue is full
+	public void observe(long session, int[] obs) throws InterruptedException{
+		Session s = session(session);
+		put(new Task(Task.OBSERVE, s, check(s, obs), 0, null));
+	}
+
+	//Queue observations for a session unless its worker stays too busy
+	//
+	//returns false if the queue was still full after the timeout, and the observations were not queued
+	public boolean tryObserve(long session, int[] obs, long timeout, TimeUnit unit) throws InterruptedException{
+		Session s = session(session);
+		if (!s.worker.queue.offer(new Task(Task.OBSERVE, s, check(s, obs), 0, null), timeout, unit)){
+			return false;
+		}
+		if (closed){
+			s.worker.abandon();
+			throw new IllegalStateException("the server has shut down");
+		}
+		return true;
+	}
+
+	//returns where the robot most likely is, after every observation queued before the call
+	public Estimate estimate(long session) throws InterruptedException{
+		return (Estimate) call(session, Task.ESTIMATE, 0);
+	}
+
+	//returns P(X_t|e_1:T) after every observation queued before the call, in the order of the maze's variables.
+	//a filtering session only has its latest belief state
+	public double[] getBelief(long session, int t) throws InterruptedException{
+		return (double[]) call(session, Task.BELIEF, t);
+	}
+
+	//Stop tracking a robot, once the observations already queued for it have been applied
+	public void closeSession(long session) throws InterruptedException{
+		checkOpen();
+		Session s = sessions.remove(session);
+		if (s == null){
+			throw new IllegalArgumentException("unknown session " + session);
+		}
+		Result result = new Result();
+		put(new Task(Task.CLOSE, s, null, 0, result));
+		result.get();
+	}
+
+	public int numSessions(){
+		return sessions.size();
+	}
+
+	//observations applied so far
+	public long numUpdates(){
+		return updates.get();
+	}
+
+	//batches run so far, numUpdates()/numBatches() is the mean batch size
+	public long numBatches(){
+		return batches.get();
+	}
+
+	//returns a client that calls this server directly, answering the same as a socket connection
+	public InferenceClient localClient(){
+		return new LocalClient();
+	}
+
+	//Accept connections on the loopback interface
+	//
+	//returns the port listened on
+	//parameters: int port 0 for any free port
+	public synchronized int listen(int port) throws IOException{
+		if (serverSocket != null){
+			throw new IllegalStateException("already listening on port " + serverSocket.getLocalPort());
+		}
+		final ServerSocket socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		serverSocket = socket;
+		threads.execute(new Runnable() {
+			@Override
+			public void run(){
+				try{
+					while (true){
+						//once maxConnections are being served, the next robot waits in the backlog
+						connections.acquire();
+						final Socket connection;
+						try{
+							connection = socket.accept();
+							connection.setTcpNoDelay(true);
+						}
+						catch (IOException e){
+							connections.release();
+							throw e;
+						}
+						threads.execute(new Runnable() {
+							@Override
+							public void run(){
+								try{
+									serve(connection);
+								}
+								finally{
+									connections.release();
+								}
+							}
+						});
+					}
+				}
+				catch (IOException e){
+					//the socket was closed by shutdown()
+				}
+				catch (InterruptedException e){
+					//shut down
+				}
+			}
+		});
+		return socket.getLocalPort();
+	}
+
+	//returns a client connected to a server listening on this machine
+	public static InferenceClient connect(int port) throws IOException{
+		return new SocketClient(new Socket(InetAddress.getLoopbackAddress(), port));
+	}
+
+	//stop accepting connections and stop every worker. Updates still queued are dropped, and questions still
+	//waiting for an answer fail with an IllegalStateException
+	public synchronized void shutdown(){
+		closed = true;
+		if (serverSocket != null){
+			try{
+				serverSocket.close();
+			}
+			catch (IOException e){
+				//closing anyway
+			}
+		}
+		threads.shutdownNow();
+		for (Worker worker: workers){
+			worker.abandon();
+		}
+	}
+
+	private void checkOpen(){
+		if (closed){
+			throw new IllegalStateException("the server has shut down");
+		}
+	}
+
+	//queue a task for its session's worker, waiting while the queue is full. A task that races shutdown() is failed
+	//rather than left for a worker that has stopped
+	private void put(Task task) throws InterruptedException{
+		checkOpen();
+		Worker worker = task.session.worker;
+		worker.queue.put(task);
+		if (closed){
+			worker.abandon();
+		}
+	}
+
+	private Session session(long session){
+		checkOpen();
+		Session s = sessions.get(session);
+		if (s == null){
+			throw new IllegalArgumentException("unknown session " + session);
+		}
+		return s;
+	}
+
+	//observations are checked as they're queued, so a bad one can't fail a batch
+	private static int[] check(Session s, int[] obs){
+		int numObservations = s.model.numObservations();
+		for (int o: obs){
+			if ((o < 0 && o != HiddenMarkovModel.MISSING) || o >= numObservations){
+				throw new IllegalArgumentException("observation out of range: " + o);
+			}
+		}
+		return obs.clone();
+	}
+
+	//queue a task behind the session's observations and wait for its answer
+	private Object call(long session, int kind, int t) throws InterruptedException{
+		Session s = session(session);
+		Result result = new Result();
+		put(new Task(kind, s, null, t, result));
+		return result.get();
+	}
+
+	//a maze and the model its new sessions use
+	private static class MazeEntry {
+		final int index; //batches are grouped by maze in this order
+		final SensorRobot robot;
+		private HiddenMarkovModel model;
+		private int[] variables;
+
+		MazeEntry(int index, SensorRobot robot){
+			this.index = index;
+			this.robot = robot;
+		}
+
+		//the current model and the locations of its variables, copied only when the maze has been edited
+		synchronized Object[] snapshot(){
+			synchronized (robot){
+				if (model != robot.getModel()){
+					model = robot.getModel();
+					variables = robot.variables.clone();
+				}
+				return new Object[]{model, variables};
+			}
+		}
+	}
+
+	//one robot's belief state, only ever used by its worker's thread
+	private static class Session {
+		final long id;
+		final MazeEntry maze;
+		final Worker worker;
+		final HiddenMarkovModel model;
+		final int[] variables;
+		final int width;
+
+		final SmoothingSession smoother; //null for a filtering session
+		InferenceWorkspace workspace; //the filtering session's belief state
+		double[] belief; //the smoothing session's latest filtered belief state
+		int time = 0;
+		double logLikelihood = 0;
+		int start = 0; //the time a restored session was saved at, the smoother's time 0
+		double startLogLikelihood = 0;
+		int saved = 0; //the time of the last checkpoint
+		boolean closed = false; //observations queued by a sender that raced closeSession() are dropped
+
+		//observations waiting to be applied together
+		int[] pending = new int[16];
+		int numPending = 0;
+
+		//parameters: SnapshotStore.Snapshot restored the saved state to start from, or null to start from the prior
+		Session(long id, MazeEntry maze, Worker worker, boolean smoothing, SnapshotStore.Snapshot restored){
+			this.id = id;
+			this.maze = maze;
+			this.worker = worker;
+			Object[] snapshot = maze.snapshot();
+			this.model = (HiddenMarkovModel) snapshot[0];
+			this.variables = (int[]) snapshot[1];
+			this.width = maze.robot.getMaze().width;
+
+			double[] initial = null;
+			if (restored != null){
+				initial = restored.belief;
+				time = (int) restored.time;
+				start = time;
+				saved = time;
+				logLikelihood = restored.logLikelihood;
+				startLogLikelihood = logLikelihood;
+			}
+
+			if (smoothing){
+				smoother = new SmoothingSession(model, SmoothingSession.DEFAULT_TOLERANCE, initial);
+				belief = new double[model.numVariables()];
+				smoother.getFiltered(0, belief);
+			}
+			else{
+				smoother = null;
+				workspace = model.getWorkspacePool().acquire();
+				for (int i=0; i<model.numVariables(); i++){
+					workspace.belief[i] = initial != null ? initial[i] : model.getPrior(i);
+				}
+			}
+		}
+
+		void queue(int[] obs){
+			if (numPending + obs.length > pending.length){
+				pending = Arrays.copyOf(pending, Math.max(2*pending.length, numPending + obs.length));
+			}
+			System.arraycopy(obs, 0, pending, numPending, obs.length);
+			numPending += obs.length;
+		}
+
+		//apply the waiting observations
+		//returns how many there were
+		int flush(){
+			int count = numPending;
+			if (count == 0){
+				return 0;
+			}
+			if (smoother != null){
+				smoother.append(Arrays.copyOf(pending, count));
+				smoother.getFiltered(smoother.length(), belief);
+				logLikelihood = startLogLikelihood + smoother.logLikelihood();
+			}
+			else{
+				for (int n=0; n<count; n++){
+					logLikelihood += Math.log(model.filterStep(workspace.belief, pending[n], workspace.scratch));
+					workspace.swap();
+				}
+			}
+			time += count;
+			numPending = 0;
+			return count;
+		}
+
+		Estimate estimate(){
+			double[] latest = smoother != null ? belief : workspace.belief;
+			int best = 0;
+			for (int i=1; i<latest.length; i++){
+				if (latest[i] > latest[best]){
+					best = i;
+				}
+			}
+			int location = variables[best];
+			return new Estimate(id, time, best, location%width, location/width, latest[best], logLikelihood);
+		}
+
+		double[] belief(int t){
+			if (smoother != null){
+				if (t < start){
+					throw new IllegalArgumentException("the session was restored at time " + start + ", the belief states before it weren't saved");
+				}
+				return smoother.getPosterior(t - start);
+			}
+			if (t != time){
+				throw new IllegalArgumentException("a filtering session only has its belief state at time " + time);
+			}
+			return workspace.belief.clone();
+		}
+
+		//save the latest filtered belief state
+		void save(SnapshotStore store){
+			try{
+				store.append(id, model.fingerprint(), time, logLikelihood, smoother != null, smoother != null ? belief : workspace.belief);
+				saved = time;
+			}
+			catch (IOException e){
+				report(e);
+			}
+		}
+
+		void close(){
+			closed = true;
+			if (workspace != null){
+				model.getWorkspacePool().release(workspace);
+				workspace = null;
+			}
+		}
+	}
+
+	//an update or a question for one session
+	private static class Task {
+		static final int OBSERVE = 0;
+		static final int ESTIMATE = 1;
+		static final int BELIEF = 2;
+		static final int CLOSE = 3;
+		static final int CHECKPOINT = 4;
+
+		final int kind;
+		final Session session;
+		final int[] obs; //for OBSERVE
+		final int time; //for BELIEF
+		final Result result; //null for OBSERVE
+
+		Task(int kind, Session session, int[] obs, int time, Result result){
+			this.kind = kind;
+			this.session = session;
+			this.obs = obs;
+			this.time = time;
+			this.result = result;
+		}
+	}
+
+	//the answer to a task, waited for by the thread that queued it. Only the first answer counts, so a task failed by
+	//shutdown() keeps its failure
+	private static class Result {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Object value;
+		private RuntimeException error;
+
+		synchronized void set(Object value){
+			if (done.getCount() > 0){
+				this.value = value;
+				done.countDown();
+			}
+		}
+
+		synchronized void fail(RuntimeException error){
+			if (done.getCount() > 0){
+				this.error = error;
+				done.countDown();
+			}
+		}
+
+		Object get() throws InterruptedException{
+			done.await();
+			if (error != null){
+				throw error;
+			}
+			return value;
+		}
+	}
+
+	//batches are applied maze by maze, and session by session within a maze
+	private static final Comparator<Task> BY_MAZE_AND_SESSION = new Comparator<Task>() {
+		@Override
+		public int compare(Task a, Task b){
+			if (a.session.maze.index != b.session.maze.index){
+				return a.session.maze.index < b.session.maze.index ? -1 : 1;
+			}
+			return a.session.id < b.session.id ? -1 : (a.session.id == b.session.id ? 0 : 1);
+		}
+	};
+
+	//a thread applying the updates of its share of the sessions
+	private class Worker implements Runnable {
+		final ArrayBlockingQueue<Task> queue;
+
+		Worker(int capacity){
+			queue = new ArrayBlockingQueue<Task>(capacity);
+		}
+
+		@Override
+		public void run(){
+			ArrayList<Task> batch = new ArrayList<Task>(maxBatch);
+			try{
+				while (true){
+					batch.add(queue.take());
+					queue.drainTo(batch, maxBatch - 1);
+					apply(batch);
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e){
+				//shut down
+			}
+			finally{
+				//nothing will answer the tasks this worker didn't get to
+				fail(batch);
+				abandon();
+			}
+		}
+
+		//fail every task still waiting in the queue, once the worker has stopped or is stopping
+		void abandon(){
+			ArrayList<Task> left = new ArrayList<Task>();
+			queue.drainTo(left);
+			fail(left);
+		}
+
+		private void fail(ArrayList<Task> tasks){
+			for (Task task: tasks){
+				if (task.result != null){
+					task.result.fail(new IllegalStateException("the server has shut down"));
+				}
+			}
+		}
+
+		//the sort is stable, so each session's tasks stay in the order they were queued
+		private void apply(ArrayList<Task> batch){
+			Collections.sort(batch, BY_MAZE_AND_SESSION);
+			EstimateListener listener = InferenceServer.this.listener;
+			SnapshotStore store = snapshots;
+			int interval = snapshotInterval;
+			long applied = 0;
+
+			int start = 0;
+			while (start < batch.size()){
+				Session session = batch.get(start).session;
+				int end = start;
+				int moved = 0;
+				for (; end < batch.size() && batch.get(end).session == session; end++){
+					Task task = batch.get(end);
+					if (task.kind == Task.OBSERVE){
+						if (!session.closed){
+							session.queue(task.obs);
+						}
+						continue;
+					}
+					moved += session.flush();
+					try{
+						if (session.closed){
+							throw new IllegalArgumentException("unknown session " + session.id);
+						}
+						if (task.kind == Task.ESTIMATE){
+							task.result.set(session.estimate());
+						}
+						else if (task.kind == Task.BELIEF){
+							task.result.set(session.belief(task.time));
+						}
+						else if (task.kind == Task.CHECKPOINT){
+							if (store != null){
+								session.save(store);
+							}
+							task.result.set(null);
+						}
+						else{
+							session.close();
+							if (store != null){
+								try{
+									store.appendClosed(session.id);
+								}
+								catch (IOException e){
+									report(e);
+								}
+							}
+							task.result.set(null);
+						}
+					}
+					catch (RuntimeException e){
+						task.result.fail(e);
+					}
+				}
+				moved += session.flush();
+				if (store != null && !session.closed && session.time - session.saved >= interval){
+					session.save(store);
+				}
+				if (moved > 0 && listener != null && !session.closed){
+					try{
+						listener.estimated(session.estimate());
+					}
+					catch (RuntimeException e){
+						report(e);
+					}
+				}
+				applied += moved;
+				start = end;
+			}
+			updates.addAndGet(applied);
+			batches.incrementAndGet();
+		}
+	}
+
+	//report an error the way an uncaught exception would be, without losing the worker
+	private static void report(Exception e){
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	//answer one connection's commands until it closes
+	private void serve(Socket socket){
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			String error = null; //from an OBS, given as the answer to the next command
+			String line;
+			while ((line = in.readLine()) != null){
+				String[] words = line.trim().split("\\s+", 3);
+				try{
+					if (words[0].equals("OBS")){
+						if (words.length < 3){
+							throw new IllegalArgumentException("OBS needs a session and readings");
+						}
+						Session session = session(Long.parseLong(words[1]));
+						observe(session.id, session.maze.robot.parseObservations(words[2]));
+						continue;
+					}
+					if (error != null){
+						throw new IllegalArgumentException(error);
+					}
+					out.write(answer(words));
+				}
+				catch (IllegalArgumentException e){
+					if (words[0].equals("OBS")){
+						if (error == null){
+							error = e.getMessage();
+						}
+						continue;
+					}
+					error = null;
+					out.write("ERROR " + e.getMessage());
+				}
+				catch (RuntimeException e){
+					//a BELIEF time outside the log, for one
+					out.write("ERROR " + e.getMessage());
+				}
+				out.write('\n');
+				//only flush once the connection has nothing more to say right away
+				if (!in.ready()){
+					out.flush();
+				}
+			}
+		}
+		catch (SocketException e){
+			//the robot hung up
+		}
+		catch (IOException e){
+			//the robot hung up
+		}
+		catch (InterruptedException e){
+			//shut down
+		}
+		finally{
+			try{
+				socket.close();
+			}
+			catch (IOException e){
+				//closing anyway
+			}
+		}
+	}
+
+	//the answer to a command other than OBS
+	private String answer(String[] words) throws InterruptedException{
+		String command = words[0];
+		if (command.equals("OPEN") && words.length >= 2){
+			String kind = words.length > 2 ? words[2].trim() : FILTER;
+			if (!kind.equals(FILTER) && !kind.equals(SMOOTH)){
+				throw new IllegalArgumentException("a session is " + FILTER + " or " + SMOOTH);
+			}
+			return "OK " + openSession(words[1], kind.equals(SMOOTH));
+		}
+		if (words.length < 2){
+			throw new IllegalArgumentException("unknown command " + command);
+		}
+		long id = Long.parseLong(words[1]);
+		if (command.equals("EST")){
+			return estimate(id).toString();
+		}
+		if (command.equals("BELIEF") && words.length == 3){
+			int t = Integer.parseInt(words[2].trim());
+			double[] belief = getBelief(id, t);
+			StringBuilder builder = new StringBuilder("BELIEF ").append(id).append(' ').append(t);
+			for (double p: belief){
+				builder.append(' ').append(p);
+			}
+			return builder.toString();
+		}
+		if (command.equals("CLOSE")){
+			closeSession(id);
+			return "OK " + id;
+		}
+		throw new IllegalArgumentException("unknown command " + command);
+	}
+
+	//the in-process stand-in for a socket connection
+	private class LocalClient implements InferenceClient {
+		public long open(String maze, boolean smoothing){
+			return openSession(maze, smoothing);
+		}
+
+		public void observe(long session, int[] obs) throws InterruptedException{
+			InferenceServer.this.observe(session, obs);
+		}
+
+		public Estimate estimate(long session) throws InterruptedException{
+			return InferenceServer.this.estimate(session);
+		}
+
+		public double[] getBelief(long session, int t) throws InterruptedException{
+			return InferenceServer.this.getBelief(session, t);
+		}
+
+		public void close(long session) throws InterruptedException{
+			closeSession(session);
+		}
+
+		public void disconnect(){
+		}
+	}
+
+	//speaks the protocol over a socket. Observations are buffered and sent with the next command that has an answer
+	private static class SocketClient implements InferenceClient {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+
+		SocketClient(Socket socket) throws IOException{
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		public synchronized long open(String maze, boolean smoothing) throws IOException{
+			return Long.parseLong(ask("OPEN " + maze + " " + (smoothing ? SMOOTH : FILTER))[1]);
+		}
+
+		//observation values are sent as numbers, so any maze's readings can be sent the same way
+		public synchronized void observe(long session, int[] obs) throws IOException{
+			if (obs.length == 0){
+				return;
+			}
+			out.write("OBS ");
+			out.write(Long.toString(session));
+			for (int o: obs){
+				out.write(' ');
+				out.write(Integer.toString(o));
+			}
+			out.write('\n');
+		}
+
+		public synchronized Estimate estimate(long session) throws IOException{
+			String[] words = ask("EST " + session);
+			return new Estimate(Long.parseLong(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]),
+					Integer.parseInt(words[4]), Integer.parseInt(words[5]),
+					Double.parseDouble(words[6]), Double.parseDouble(words[7]));
+		}
+
+		public synchronized double[] getBelief(long session, int t) throws IOException{
+			String[] words = ask("BELIEF " + session + " " + t);
+			double[] belief = new double[words.length - 3];
+			for (int i=0; i<belief.length; i++){
+				belief[i] = Double.parseDouble(words[i+3]);
+			}
+			return belief;
+		}
+
+		public synchronized void close(long session) throws IOException{
+			ask("CLOSE " + session);
+		}
+
+		public synchronized void disconnect() throws IOException{
+			try{
+				out.flush();
+			}
+			finally{
+				socket.close();
+			}
+		}
+
+		//send a command and read its answer
+		private String[] ask(String command) throws IOException{
+			out.write(command);
+			out.write('\n');
+			out.flush();
+			String line = in.readLine();
+			if (line == null){
+				throw new IOException("the server closed the connection");
+			}
+			if (line.startsWith("ERROR ")){
+				throw new IllegalArgumentException(line.substring(6));
+			}
+			return line.split(" ");
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		if (args.length < 2){
+			System.err.println("usage: InferenceServer port [-s snapshot file] maze.maz ...");
+			System.exit(2);
+		}
+
+		InferenceServer server = new InferenceServer();
+		String snapshotFile = null;
+		for (int a=1; a<args.length; a++){
+			if (args[a].equals("-s") && a+1 < args.length){
+				snapshotFile = args[++a];
+				continue;
+			}
+			Maze maze = Maze.readFromFile(args[a]);
+			if (maze == null){
+				System.err.println("could not read maze " + args[a]);
+				System.exit(1);
+			}
+			server.addMaze(new File(args[a]).getName(), maze);
+		}
+		SnapshotStore store = null;
+		if (snapshotFile != null){
+			store = new SnapshotStore(snapshotFile);
+			System.err.println("restored " + server.restore(store) + " sessions from " + snapshotFile);
+			server.setSnapshots(store, SNAPSHOT_INTERVAL);
+		}
+		int port = server.listen(Integer.parseInt(args[0]));
+		System.err.println("listening on port " + port);
+
+		//report the load once a minute, and checkpoint every session so the store is on disk
+		long last = 0;
+		while (true){
+			Thread.sleep(60000);
+			if (store != null){
+				server.checkpoint();
+				try{
+					store.compactIfLarger(COMPACT_FACTOR);
+				}
+				catch (IOException e){
+					System.err.println("could not compact " + snapshotFile + ": " + e.getMessage());
+				}
+			}
+			long now = server.numUpdates();
+			System.err.println(String.format("%d sessions, %d updates in the last minute, %.1f per batch",
+					server.numSessions(), now - last, server.numBatches() == 0 ? 0.0 : now/(double) server.numBatches()));
+			last = now;
+		}
+	}
+}
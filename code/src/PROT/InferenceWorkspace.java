@@ -0,0 +1,60 @@
+/**
+ * InferenceWorkspace holds the mutable state of one inference query: the belief buffers the
+ * forward algorithm ping-pongs between and the running log likelihood
+ *
+ * a workspace is used by one thread at a time. Workspaces are cheap to keep around,
+ * so they can be pooled and reused (see WorkspacePool) instead of allocated for every query.
+ * after the first query of a given length, running the *Into methods of HiddenMarkovModel
+ * on a workspace allocates nothing
+ */
+
+package PROT;
+
+public final class InferenceWorkspace {
+
+	//the forward algorithm reads belief and writes scratch, then swaps them
+	double[] belief;
+	double[] scratch;
+
+	double logLikelihood; //log P(e_1:t) of the last forward pass
+
+	//viterbi backpointers for every time slice, flattened to t*numVariables + variable.
+	//the buffer only grows, so once it has seen the longest sequence viterbi allocates nothing
+	private int[] backpointers = new int[0];
+
+	InferenceWorkspace(int numVariables){
+		belief = new double[numVariables];
+		scratch = new double[numVariables];
+	}
+
+	public int numVariables(){
+		return belief.length;
+	}
+
+	//the belief state left by the last forward pass, only valid until the workspace is used again
+	public double[] getBelief(){
+		return belief;
+	}
+
+	//log P(e_1:t) of the last forward pass
+	public double getLogLikelihood(){
+		return logLikelihood;
+	}
+
+	//a backpointer buffer with room for at least size entries
+	int[] backpointers(long size){
+		if (size > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("viterbi needs " + size + " backpointers, more than one array can hold");
+		}
+		if (backpointers.length < size){
+			backpointers = new int[(int) size];
+		}
+		return backpointers;
+	}
+
+	void swap(){
+		double[] swap = belief;
+		belief = scratch;
+		scratch = swap;
+	}
+}
@@ -0,0 +1,285 @@
+/**
+ * KBestViterbi lists the most likely paths through the state space in order of decreasing probability,
+ * computing each one only when it is asked for
+ *
+ * it uses the recursive enumeration algorithm (Jimenez and Marzal) on the viterbi trellis. The first pass is
+ * plain viterbi, which also gives the best path into every (time, variable) node. After that, the k-th best path
+ * into a node is found from a small heap of candidates at that node: the best path through each predecessor,
+ * and the next path through the predecessor the previous answer went through. Asking for the next path only
+ * touches the nodes along the previous path and their heaps, so each path after the first costs about
+ * O(T log S) instead of another viterbi pass
+ *
+ * like mostLikelySequence(), the variable at time 0 is maximized over and not part of a path,
+ * so every path returned is a different sequence of variables for times 1..T
+ */
+
+package PROT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+public class KBestViterbi implements Iterator<KBestViterbi.Path> {
+
+	private final HiddenMarkovModel model;
+	private final int[] obs;
+	private final int numVariables;
+
+	//delta[t][i] is the log probability of the best path into variable i at time t
+	private final double[][] delta;
+	private final int[] backpointers;
+
+	//the nodes asked for more than their best path, keyed by t*numVariables + i
+	private final HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+
+	//the paths out of the last time slice
+	private final Node end;
+	private int returned = 0;
+
+	//a path into a node: its log probability, and the predecessor and the rank of the path into it
+	private static class Node {
+		double[] scores = new double[2];
+		int[] predecessors = new int[2];
+		int[] ranks = new int[2];
+		int size = 0;
+		PriorityQueue<Candidate> candidates; //built the first time the second best path is needed
+
+		void add(double score, int predecessor, int rank){
+			if (size == scores.length){
+				scores = Arrays.copyOf(scores, 2*size);
+				predecessors = Arrays.copyOf(predecessors, 2*size);
+				ranks = Arrays.copyOf(ranks, 2*size);
+			}
+			scores[size] = score;
+			predecessors[size] = predecessor;
+			ranks[size] = rank;
+			size++;
+		}
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final double score;
+		final int predecessor;
+		final int rank;
+
+		Candidate(double score, int predecessor, int rank){
+			this.score = score;
+			this.predecessor = predecessor;
+			this.rank = rank;
+		}
+
+		//highest score first
+		public int compareTo(Candidate other){
+			return Double.compare(other.score, score);
+		}
+	}
+
+	//a path and its log probability
+	public static class Path {
+		public final int[] variables; //variables[t] is the variable at time t+1, as in mostLikelySequence()
+		public final double logProbability; //log P(x_1:T, e_1:T) with the variable at time 0 maximized over
+
+		Path(int[] variables, double logProbability){
+			this.variables = variables;
+			this.logProbability = logProbability;
+		}
+	}
+
+	//run viterbi on the observations, the paths are enumerated by next()
+	public KBestViterbi(HiddenMarkovModel model, int[] obs){
+		this.model = model;
+		this.obs = obs.clone();
+		this.numVariables = model.numVariables();
+
+		int length = obs.length;
+		delta = new double[length + 1][numVariables];
+		backpointers = new int[length*numVariables];
+		for (int i=0; i<numVariables; i++){
+			delta[0][i] = Math.log(model.getPrior(i));
+		}
+		for (int t=0; t<length; t++){
+			model.viterbiStep(delta[t], obs[t], delta[t+1], backpointers, t*numVariables);
+		}
+
+		//the end node has every variable at time T as a predecessor
+		end = new Node();
+		end.candidates = new PriorityQueue<Candidate>();
+		if (length > 0){
+			for (int i=0; i<numVariables; i++){
+				if (delta[length][i] != Double.NEGATIVE_INFINITY){
+					end.candidates.add(new Candidate(delta[length][i], i, 0));
+				}
+			}
+		}
+	}
+
+	//is there another path with non-zero probability
+	public boolean hasNext(){
+		return nextAtEnd(returned);
+	}
+
+	//returns the next most likely path
+	public Path next(){
+		if (!nextAtEnd(returned)){
+			throw new NoSuchElementException();
+		}
+		int k = returned++;
+
+		int length = obs.length;
+		int[] path = new int[length];
+		int variable = end.predecessors[k];
+		int rank = end.ranks[k];
+		for (int t=length; t>0; t--){
+			path[t-1] = variable;
+			if (t == 1){
+				break;
+			}
+			if (rank == 0){
+				variable = backpointers[(t-1)*numVariables + variable];
+			}
+			else{
+				Node node = nodes.get(key(t, variable));
+				int predecessor = node.predecessors[rank];
+				rank = node.ranks[rank];
+				variable = predecessor;
+			}
+		}
+		return new Path(path, end.scores[k]);
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+
+	//make sure the end node has its k-th path (counting from 0)
+	//returns false if there are fewer than k+1 paths
+	private boolean nextAtEnd(int k){
+		while (end.size <= k){
+			if (end.size > 0){
+				//the path just taken went through (T, i) with some rank, offer the next path through it
+				int i = end.predecessors[end.size - 1];
+				int rank = end.ranks[end.size - 1] + 1;
+				if (path(obs.length, i, rank)){
+					end.candidates.add(new Candidate(score(obs.length, i, rank), i, rank));
+				}
+			}
+			Candidate best = end.candidates.poll();
+			if (best == null){
+				return false;
+			}
+			end.add(best.score, best.predecessor, best.rank);
+		}
+		return true;
+	}
+
+	//Make sure the node (t, i) has its k-th best path. The request follows the previous path of each node down
+	//the trellis until it reaches a node that can answer, then the nodes on the way take their next candidate
+	//returns false if there are fewer than k+1 paths into the node
+	private boolean path(int t, int i, int k){
+		ArrayList<Node> chain = new ArrayList<Node>();
+		ArrayList<Integer> times = new ArrayList<Integer>();
+		ArrayList<Integer> variables = new ArrayList<Integer>();
+
+		//walk down until a node already has the path asked of it
+		while (true){
+			if (k == 0){
+				break;
+			}
+			if (t == 1){
+				//at time 1 the variable at time 0 is maximized over, there is only one path
+				return unwind(chain, times, variables, false);
+			}
+			Node node = node(t, i);
+			if (node.size > k){
+				break;
+			}
+			chain.add(node);
+			times.add(t);
+			variables.add(i);
+
+			//the next path through the predecessor of this node's last path
+			int last = node.size - 1;
+			int predecessor = node.predecessors[last];
+			k = node.ranks[last] + 1;
+			t = t - 1;
+			i = predecessor;
+		}
+		return unwind(chain, times, variables, true);
+	}
+
+	//give every node on the chain its next path, starting from the bottom
+	//parameters: boolean found whether the node below the chain had the path asked of it
+	private boolean unwind(ArrayList<Node> chain, ArrayList<Integer> times, ArrayList<Integer> variables, boolean found){
+		for (int c=chain.size()-1; c>=0; c--){
+			Node node = chain.get(c);
+			int t = times.get(c);
+			int i = variables.get(c);
+
+			if (node.candidates == null){
+				node.candidates = new PriorityQueue<Candidate>();
+				addPredecessors(node, t, i);
+			}
+			int last = node.size - 1;
+			if (found){
+				int predecessor = node.predecessors[last];
+				int rank = node.ranks[last] + 1;
+				node.candidates.add(new Candidate(score(t-1, predecessor, rank) + step(t, i, predecessor), predecessor, rank));
+			}
+
+			Candidate best = node.candidates.poll();
+			found = best != null;
+			if (found){
+				node.add(best.score, best.predecessor, best.rank);
+			}
+		}
+		return found;
+	}
+
+	//the best path through every predecessor other than the one the best path into (t, i) came from
+	private void addPredecessors(Node node, int t, int i){
+		int slots = model.slots();
+		int[] columns = model.columns();
+		double[] logProbabilities = model.logProbabilities();
+		double likelihood = model.logEmission(obs[t-1])[i];
+		int best = node.predecessors[0];
+		for (int k=i*slots; k<(i+1)*slots; k++){
+			int j = columns[k];
+			if (j == best || logProbabilities[k] == Double.NEGATIVE_INFINITY){
+				continue;
+			}
+			double score = delta[t-1][j] + logProbabilities[k] + likelihood;
+			if (score != Double.NEGATIVE_INFINITY){
+				node.candidates.add(new Candidate(score, j, 0));
+			}
+		}
+	}
+
+	//log P(x_t = i | x_t-1 = j) + log P(e_t | x_t = i)
+	private double step(int t, int i, int j){
+		return Math.log(model.getTransition(i, j)) + model.logEmission(obs[t-1])[i];
+	}
+
+	//the log probability of the k-th path into (t, i), which must exist
+	private double score(int t, int i, int k){
+		return k == 0 ? delta[t][i] : nodes.get(key(t, i)).scores[k];
+	}
+
+	//the node (t, i), starting with its best path
+	private Node node(int t, int i){
+		Long key = key(t, i);
+		Node node = nodes.get(key);
+		if (node == null){
+			node = new Node();
+			node.add(delta[t][i], backpointers[(t-1)*numVariables + i], 0);
+			nodes.put(key, node);
+		}
+		return node;
+	}
+
+	private long key(int t, int i){
+		return (long) t*numVariables + i;
+	}
+}
@@ -0,0 +1,403 @@
+/**
+ * MapMatcher works out which of a set of candidate mazes a robot is in, from one observation log
+ *
+ * each candidate is scored by log P(e_1:t | maze) with its own forward filter. The filters run in parallel
+ * a chunk of time steps at a time. After every chunk, candidates that have fallen more than the pruning margin
+ * behind the leader are dropped: their likelihood relative to the leader is e^-margin or less and can't plausibly
+ * recover, so the remaining observations are only spent on maps that are still in the running
+ *
+ * usage: MapMatcher (log file | -) maze.maz|maze directory ...
+ */
+
+package PROT;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class MapMatcher {
+
+	//a map this many nats behind the leader is e^-50 times less likely, and is dropped
+	public static final double DEFAULT_MARGIN = 50;
+
+	//time steps scored between pruning rounds
+	public static final int DEFAULT_CHUNK = 64;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<HiddenMarkovModel> models = new ArrayList<HiddenMarkovModel>();
+
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+
+	private double margin = DEFAULT_MARGIN;
+	private int chunk = DEFAULT_CHUNK;
+
+	//a matcher with its own pool of one daemon thread per processor
+	public MapMatcher(){
+		this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "map matcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), true);
+	}
+
+	//a matcher that runs its work on the caller's executor, which it never shuts down
+	public MapMatcher(ExecutorService executor){
+		this(executor, false);
+	}
+
+	private MapMatcher(ExecutorService executor, boolean ownsExecutor){
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	//add a candidate map
+	public synchronized void addMap(String name, HiddenMarkovModel model){
+		names.add(name);
+		models.add(model);
+	}
+
+	public void addMap(String name, Maze maze){
+		addMap(name, new SensorRobot(maze).getModel());
+	}
+
+	//Build the models of many mazes in parallel and add them as candidates
+	public void addMaps(List<String> names, final List<Maze> mazes) throws InterruptedException{
+		List<Future<HiddenMarkovModel>> built = new ArrayList<Future<HiddenMarkovModel>>();
+		for (final Maze maze: mazes){
+			built.add(executor.submit(new Callable<HiddenMarkovModel>() {
+				@Override
+				public HiddenMarkovModel call(){
+					return new SensorRobot(maze).getModel();
+				}
+			}));
+		}
+		for (int m=0; m<built.size(); m++){
+			addMap(names.get(m), get(built.get(m)));
+		}
+	}
+
+	public synchronized int numMaps(){
+		return models.size();
+	}
+
+	//parameters: double margin how many nats behind the leader a map may fall before it's dropped,
+	//infinity scores every map to the end
+	public void setMargin(double margin){
+		this.margin = margin;
+	}
+
+	//parameters: int chunk time steps scored between pruning rounds
+	public void setChunk(int chunk){
+		if (chunk < 1){
+			throw new IllegalArgumentException("chunk must be at least one time step");
+		}
+		this.chunk = chunk;
+	}
+
+	//Score an observation log against every candidate map
+	//
+	//returns the maps ranked from most to least likely: the maps that were scored to the end by log likelihood,
+	//then the dropped maps by how long they lasted
+	public List<MapScore> match(int[] obs) throws InterruptedException{
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		synchronized (this){
+			for (int m=0; m<models.size(); m++){
+				candidates.add(new Candidate(m, names.get(m), models.get(m)));
+			}
+		}
+
+		List<Candidate> alive = new ArrayList<Candidate>(candidates);
+		try{
+			int t = 0;
+			while (t < obs.length && !alive.isEmpty()){
+				final int from = t;
+				final int to = Math.min(obs.length, t + chunk);
+				final int[] observations = obs;
+
+				List<Future<?>> tasks = new ArrayList<Future<?>>(alive.size());
+				for (final Candidate candidate: alive){
+					tasks.add(executor.submit(new Runnable() {
+						@Override
+						public void run(){
+							candidate.advance(observations, from, to);
+						}
+					}));
+				}
+				getAll(tasks);
+				t = to;
+
+				//drop the maps that have fallen too far behind
+				double leader = Double.NEGATIVE_INFINITY;
+				for (Candidate candidate: alive){
+					leader = Math.max(leader, candidate.logLikelihood);
+				}
+				List<Candidate> survivors = new ArrayList<Candidate>(alive.size());
+				for (Candidate candidate: alive){
+					if (candidate.logLikelihood >= leader - margin){
+						survivors.add(candidate);
+					}
+					else{
+						candidate.release();
+					}
+				}
+				alive = survivors;
+			}
+		}
+		finally{
+			//getAll() returns or throws only once no filter is running, so every workspace can go back
+			for (Candidate candidate: candidates){
+				candidate.release();
+			}
+		}
+
+		//P(map | e_1:t) over the surviving maps, with a uniform prior over maps
+		double leader = Double.NEGATIVE_INFINITY;
+		for (Candidate candidate: alive){
+			leader = Math.max(leader, candidate.logLikelihood);
+		}
+		double total = 0;
+		for (Candidate candidate: alive){
+			total += Math.exp(candidate.logLikelihood - leader);
+		}
+
+		List<MapScore> scores = new ArrayList<MapScore>(candidates.size());
+		for (Candidate candidate: candidates){
+			boolean survived = candidate.steps == obs.length;
+			double probability = survived && total > 0 ? Math.exp(candidate.logLikelihood - leader)/total : 0;
+			scores.add(new MapScore(candidate.index, candidate.name, candidate.logLikelihood, candidate.steps, !survived, probability));
+		}
+		Collections.sort(scores, new Comparator<MapScore>() {
+			@Override
+			public int compare(MapScore a, MapScore b){
+				if (a.steps != b.steps){
+					return a.steps > b.steps ? -1 : 1;
+				}
+				return Double.compare(b.logLikelihood, a.logLikelihood);
+			}
+		});
+		return scores;
+	}
+
+	//shut down the thread pool, if the matcher made its own
+	public void shutdown(){
+		if (ownsExecutor){
+			executor.shutdown();
+		}
+	}
+
+	//wait for every task, even after one of them fails or the wait is interrupted, so none is still using its
+	//workspace when this returns or throws. A chunk is short, so an interrupt is only noticed once the round is done
+	//the first failure is rethrown
+	private static void getAll(List<Future<?>> tasks) throws InterruptedException{
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<?> future: tasks){
+			while (true){
+				try{
+					future.get();
+					break;
+				}
+				catch (InterruptedException e){
+					interrupted = true;
+				}
+				catch (ExecutionException e){
+					if (failure == null){
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted){
+			throw new InterruptedException();
+		}
+		if (failure != null){
+			throw unchecked(failure);
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws InterruptedException{
+		try{
+			return future.get();
+		}
+		catch (ExecutionException e){
+			throw unchecked(e.getCause());
+		}
+	}
+
+	//the exception a task threw, as one that needn't be declared
+	private static RuntimeException unchecked(Throwable cause){
+		if (cause instanceof RuntimeException){
+			return (RuntimeException) cause;
+		}
+		if (cause instanceof Error){
+			throw (Error) cause;
+		}
+		return new IllegalStateException(cause);
+	}
+
+	//one map's filter, advanced by one thread at a time
+	private static class Candidate {
+		final int index;
+		final String name;
+		final HiddenMarkovModel model;
+		InferenceWorkspace workspace;
+		double logLikelihood = 0;
+		int steps = 0; //time steps scored so far
+
+		Candidate(int index, String name, HiddenMarkovModel model){
+			this.index = index;
+			this.name = name;
+			this.model = model;
+		}
+
+		void advance(int[] obs, int from, int to){
+			if (workspace == null){
+				workspace = model.getWorkspacePool().acquire();
+				for (int i=0; i<model.numVariables(); i++){
+					workspace.belief[i] = model.getPrior(i);
+				}
+			}
+			for (int t=from; t<to; t++){
+				logLikelihood += Math.log(model.filterStep(workspace.belief, obs[t], workspace.scratch));
+				workspace.swap();
+			}
+			steps = to;
+		}
+
+		//give the workspace back to the model's pool
+		void release(){
+			if (workspace != null){
+				model.getWorkspacePool().release(workspace);
+				workspace = null;
+			}
+		}
+	}
+
+	//how well one map explains an observation log
+	public static class MapScore {
+		public final int index; //the order the map was added in
+		public final String name;
+		public final double logLikelihood; //log P(e_1:steps | map)
+		public final int steps; //time steps scored, less than the log's length if the map was dropped
+		public final boolean pruned;
+		public final double probability; //P(map | e_1:t) among the maps that weren't dropped
+
+		MapScore(int index, String name, double logLikelihood, int steps, boolean pruned, double probability){
+			this.index = index;
+			this.name = name;
+			this.logLikelihood = logLikelihood;
+			this.steps = steps;
+			this.pruned = pruned;
+			this.probability = probability;
+		}
+
+		public String toString(){
+			return String.format("%s log likelihood=%.4f steps=%d%s probability=%.6f",
+					name, logLikelihood, steps, pruned ? " (dropped)" : "", probability);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		if (args.length < 2){
+			System.err.println("usage: MapMatcher (log file | -) maze.maz|maze directory ...");
+			System.exit(2);
+		}
+
+		List<String> names = new ArrayList<String>();
+		List<Maze> mazes = new ArrayList<Maze>();
+		for (int a=1; a<args.length; a++){
+			File file = new File(args[a]);
+			File[] files;
+			if (file.isDirectory()){
+				//only the maze files of a directory
+				files = file.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File f){
+						return f.isFile() && f.getName().endsWith(".maz");
+					}
+				});
+				if (files == null){
+					System.err.println("could not list " + file.getPath());
+					System.exit(1);
+				}
+				Arrays.sort(files);
+			}
+			else if (file.isFile()){
+				files = new File[]{file};
+			}
+			else{
+				System.err.println("no such maze or directory " + file.getPath());
+				System.exit(1);
+				return;
+			}
+			for (File f: files){
+				Maze maze = Maze.readFromFile(f.getPath());
+				if (maze == null){
+					System.err.println("could not read maze " + f.getPath());
+					System.exit(1);
+				}
+				names.add(f.getPath());
+				mazes.add(maze);
+			}
+		}
+		if (mazes.isEmpty()){
+			System.err.println("no .maz files found");
+			System.err.println("usage: MapMatcher (log file | -) maze.maz|maze directory ...");
+			System.exit(2);
+		}
+
+		String text;
+		if (args[0].equals("-")){
+			StringBuilder builder = new StringBuilder();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null){
+				builder.append(line).append('\n');
+			}
+			text = builder.toString();
+		}
+		else{
+			text = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+		}
+
+		//colors are read the same way for every maze
+		int[] obs = SensorRobot.parseColors(text);
+
+		MapMatcher matcher = new MapMatcher();
+		try{
+			long start = System.nanoTime();
+			matcher.addMaps(names, mazes);
+			List<MapScore> scores = matcher.match(obs);
+			long elapsed = System.nanoTime() - start;
+
+			for (MapScore score: scores){
+				System.out.println(score);
+			}
+			System.err.println(String.format("%d maps, %d observations, %.1f ms", mazes.size(), obs.length, elapsed/1e6));
+		}
+		finally{
+			matcher.shutdown();
+		}
+	}
+}
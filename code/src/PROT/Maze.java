@@ -9,40 +9,47 @@
 
 package PROT;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Maze {
 	final static Charset ENCODING = StandardCharsets.UTF_8;
-	private final char WALL = 'X';
+	public static final char WALL = 'X';
 	
 	public int width;
 	public int height;
 	
-	private char[][] grid;
+	// one byte per square, maze files are plain ASCII
+	private byte[][] grid;
+
+	private Maze() {
+	}
+	
+	// a maze from its rows, rows[y][x] is the square at x, y
+	Maze(byte[][] rows) {
+		grid = rows;
+		height = rows.length;
+		width = height == 0 ? 0 : rows[0].length;
+	}
 
 	public static Maze readFromFile(String filename) {
 		Maze m = new Maze();
 
 		try {
-			List<String> lines = readFile(filename);
+			List<byte[]> lines = readFile(filename);
 			m.height = lines.size();
 
 			int y = 0;
-			m.grid = new char[m.height][];
-			for (String line : lines) {
-				m.width = line.length();
-				m.grid[m.height - y - 1] = new char[m.width];
-				for (int x = 0; x < line.length(); x++) {
-					
-					
-					m.grid[m.height - y - 1][x] = line.charAt(x);
-				}
+			m.grid = new byte[m.height][];
+			for (byte[] line : lines) {
+				m.width = line.length;
+				m.grid[m.height - y - 1] = line;
 				y++;
 
 			}
@@ -69,9 +76,23 @@ public class Maze {
 		return coordinates;
 	}
 	
-	private static List<String> readFile(String fileName) throws IOException {
-		Path path = Paths.get(fileName);
-		return Files.readAllLines(path, ENCODING);
+	// read the lines one at a time, so a big maze is never held as Strings
+	private static List<byte[]> readFile(String fileName) throws IOException {
+		List<byte[]> lines = new ArrayList<byte[]>();
+		BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), ENCODING);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				byte[] row = new byte[line.length()];
+				for (int x = 0; x < row.length; x++) {
+					row[x] = (byte) line.charAt(x);
+				}
+				lines.add(row);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
 	}
 	
 	private int getXFromVar(int variable){
@@ -83,11 +104,19 @@ public class Maze {
 	}
 	
 	public char getChar(int variable){
-		return grid[getYFromVar(variable)][getXFromVar(variable)];
+		return (char) grid[getYFromVar(variable)][getXFromVar(variable)];
 	}
 	
 	public char getChar(int x, int y) {
-		return grid[y][x];
+		return (char) grid[y][x];
+	}
+	
+	// change one square of the maze, WALL turns it into a wall
+	public void setChar(int x, int y, char c) {
+		if (c > 127) {
+			throw new IllegalArgumentException("maze squares are ASCII characters, not '" + c + "'");
+		}
+		grid[y][x] = (byte) c;
 	}
 	
 	// is the location x, y on the map, and also a legal floor tile (not a wall)?
@@ -146,16 +175,27 @@ public class Maze {
 	public int size(){
 		return height*width;
 	}
+
+	// a maze with its own copy of every square, setChar on one doesn't change the other
+	public Maze copy() {
+		byte[][] rows = new byte[height][];
+		for (int y = 0; y < height; y++) {
+			rows[y] = grid[y].clone();
+		}
+		Maze m = new Maze(rows);
+		m.width = width;
+		return m;
+	}
 	
 	public String toString() {
-		String s = "";
+		StringBuilder s = new StringBuilder((width + 1)*height);
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
-				s += grid[y][x];
+				s.append((char) grid[y][x]);
 			}
-			s += "\n";
+			s.append("\n");
 		}
-		return s;
+		return s.toString();
 	}
 
 	public static void main(String args[]) {
@@ -0,0 +1,505 @@
+/**
+ * MazeGenerator makes mazes of any size for benchmarks and tests, either streamed to a .maz file or built in memory
+ *
+ * every row of the maze is computed from the seed and its own index, never from the rows before it, so the same
+ * settings always give the same maze, rows are generated in parallel, and writing a file only ever holds a few
+ * blocks of rows in memory. Layouts:
+ *
+ *   RANDOM     - each square is a wall with the wall density, independently of the others
+ *   CORRIDORS  - a maze of one square wide corridors, carved one row at a time by the sidewinder algorithm,
+ *                with loops knocking extra holes in the walls between corridors (0 gives a perfect maze)
+ *
+ * floor squares are colored independently with the color weights, or in color patches of a given size, which makes
+ * squares inside a patch look alike to the robot. Symmetric layouts make whole regions look alike:
+ *
+ *   NONE    - no symmetry
+ *   MIRROR  - the right half is the mirror image of the left half, colors included
+ *   TILE    - the maze is one tile repeated, so every square has a twin in every tile
+ *
+ * the robot can never tell twins apart from its readings, so symmetric mazes exercise multi-modal belief states
+ *
+ * usage: MazeGenerator width height output.maz [-seed n] [-layout random|corridors] [-walls density] [-loops p]
+ *        [-colors r,g,b,y weights] [-patch size] [-symmetry none|mirror|tile] [-period tile size]
+ */
+
+package PROT;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class MazeGenerator {
+
+	public static final String RANDOM = "random";
+	public static final String CORRIDORS = "corridors";
+
+	public static final String NONE = "none";
+	public static final String MIRROR = "mirror";
+	public static final String TILE = "tile";
+
+	//the colors SensorRobot can read
+	private static final byte[] COLORS = {'r', 'g', 'b', 'y'};
+
+	//about this many squares are generated by one task
+	private static final int BLOCK_SQUARES = 1 << 20;
+
+	//independent random streams of a row
+	private static final int LAYOUT = 0;
+	private static final int HOLES = 1;
+	private static final int PAINT = 2;
+
+	private final int width;
+	private final int height;
+	private final long seed;
+
+	private String layout = RANDOM;
+	private double wallDensity = 0.25;
+	private double loops = 0.05;
+	private double[] colorWeights = {1, 1, 1, 1};
+	private int patch = 1;
+	private String symmetry = NONE;
+	private int period = 16;
+
+	//parameters: int width, int height of the maze, long seed the same seed and settings always give the same maze
+	public MazeGenerator(int width, int height, long seed){
+		if (width < 1 || height < 1){
+			throw new IllegalArgumentException("bad maze size " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.seed = seed;
+	}
+
+	//parameters: String layout RANDOM or CORRIDORS
+	public void setLayout(String layout){
+		if (!layout.equals(RANDOM) && !layout.equals(CORRIDORS)){
+			throw new IllegalArgumentException("unknown layout " + layout);
+		}
+		this.layout = layout;
+	}
+
+	//parameters: double wallDensity the chance a square is a wall, for the RANDOM layout
+	public void setWallDensity(double wallDensity){
+		if (wallDensity < 0 || wallDensity > 1){
+			throw new IllegalArgumentException("wall density must be between 0 and 1");
+		}
+		this.wallDensity = wallDensity;
+	}
+
+	//parameters: double loops the chance each wall between two corridors is knocked through, for the CORRIDORS layout
+	public void setLoops(double loops){
+		if (loops < 0 || loops > 1){
+			throw new IllegalArgumentException("loops must be between 0 and 1");
+		}
+		this.loops = loops;
+	}
+
+	//parameters: double[] weights the relative frequency of r, g, b and y
+	public void setColorWeights(double[] weights){
+		if (weights.length != COLORS.length){
+			throw new IllegalArgumentException("one weight for each of the " + COLORS.length + " colors");
+		}
+		double total = 0;
+		for (double w: weights){
+			if (w < 0){
+				throw new IllegalArgumentException("color weights can't be negative");
+			}
+			total += w;
+		}
+		if (total <= 0){
+			throw new IllegalArgumentException("some color needs a positive weight");
+		}
+		this.colorWeights = weights.clone();
+	}
+
+	//parameters: int patch the side of the square patches that share one color, 1 colors every square on its own
+	public void setColorPatch(int patch){
+		if (patch < 1){
+			throw new IllegalArgumentException("patch size must be at least 1");
+		}
+		this.patch = patch;
+	}
+
+	//parameters: String symmetry NONE, MIRROR or TILE
+	public void setSymmetry(String symmetry){
+		if (!symmetry.equals(NONE) && !symmetry.equals(MIRROR) && !symmetry.equals(TILE)){
+			throw new IllegalArgumentException("unknown symmetry " + symmetry);
+		}
+		this.symmetry = symmetry;
+	}
+
+	//parameters: int period the side of the tile repeated by the TILE symmetry
+	public void setTilePeriod(int period){
+		if (period < 1){
+			throw new IllegalArgumentException("tile period must be at least 1");
+		}
+		this.period = period;
+	}
+
+	//Build the maze in memory, one byte per square
+	public Maze generate() throws InterruptedException{
+		final byte[][] rows = new byte[height][];
+		ExecutorService executor = newExecutor();
+		try{
+			List<Future<?>> blocks = new ArrayList<Future<?>>();
+			final int rowsPerBlock = rowsPerBlock();
+			for (int first=0; first<height; first+=rowsPerBlock){
+				final int from = first;
+				final int to = Math.min(height, first + rowsPerBlock);
+				blocks.add(executor.submit(new Runnable() {
+					@Override
+					public void run(){
+						for (int y=from; y<to; y++){
+							rows[y] = new byte[width];
+							row(y, rows[y], 0);
+						}
+					}
+				}));
+			}
+			for (Future<?> block: blocks){
+				get(block);
+			}
+		}
+		finally{
+			executor.shutdown();
+		}
+		return new Maze(rows);
+	}
+
+	//Stream the maze to a .maz file
+	public void write(String filename) throws IOException, InterruptedException{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+		try{
+			write(out);
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	//Stream the maze in the .maz format, top row first. Blocks of rows are generated in parallel a few ahead
+	//of the one being written, and written in order
+	public void write(OutputStream out) throws IOException, InterruptedException{
+		ExecutorService executor = newExecutor();
+		try{
+			final int rowsPerBlock = rowsPerBlock();
+			int numBlocks = (height + rowsPerBlock - 1)/rowsPerBlock;
+			int ahead = 2*Runtime.getRuntime().availableProcessors();
+
+			//block b holds the lines b*rowsPerBlock .. of the file, the file starts at the top row
+			List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>();
+			int submitted = 0;
+			for (int b=0; b<numBlocks; b++){
+				while (submitted < numBlocks && submitted < b + ahead){
+					final int from = submitted*rowsPerBlock;
+					final int to = Math.min(height, from + rowsPerBlock);
+					pending.add(executor.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call(){
+							byte[] lines = new byte[(to - from)*(width + 1)];
+							for (int line=from; line<to; line++){
+								int offset = (line - from)*(width + 1);
+								row(height - 1 - line, lines, offset);
+								lines[offset + width] = '\n';
+							}
+							return lines;
+						}
+					}));
+					submitted++;
+				}
+				out.write(get(pending.get(b)));
+				pending.set(b, null);
+			}
+			out.flush();
+		}
+		finally{
+			executor.shutdownNow();
+		}
+	}
+
+	//Compute row y of the maze (y = 0 is the bottom row, the last line of a .maz file)
+	//parameters: int y, byte[] into where the width squares of the row are written, int offset where they start
+	public void row(int y, byte[] into, int offset){
+		int baseWidth = baseWidth();
+		int baseY = symmetry.equals(TILE) ? y%period : y;
+		byte[] base = new byte[baseWidth];
+		baseRow(baseY, baseWidth, baseHeight(), base);
+		for (int x=0; x<width; x++){
+			into[offset + x] = base[baseX(x, baseWidth)];
+		}
+	}
+
+	//the symmetric part of the maze is generated as a smaller base maze and copied
+	private int baseWidth(){
+		if (symmetry.equals(MIRROR)){
+			return (width + 1)/2;
+		}
+		return symmetry.equals(TILE) ? Math.min(period, width) : width;
+	}
+
+	private int baseHeight(){
+		return symmetry.equals(TILE) ? Math.min(period, height) : height;
+	}
+
+	private int baseX(int x, int baseWidth){
+		if (symmetry.equals(MIRROR)){
+			return x < baseWidth ? x : width - 1 - x;
+		}
+		return symmetry.equals(TILE) ? x%period : x;
+	}
+
+	//row y of the base maze
+	private void baseRow(int y, int baseWidth, int baseHeight, byte[] row){
+		if (layout.equals(RANDOM)){
+			RowRandom random = random(y, LAYOUT);
+			for (int x=0; x<baseWidth; x++){
+				row[x] = random.nextDouble() < wallDensity ? (byte) Maze.WALL : 0;
+			}
+		}
+		else{
+			corridorRow(y, baseWidth, baseHeight, row);
+		}
+		paint(y, baseWidth, row);
+	}
+
+	//Corridors run along the even rows and columns, the squares at odd x and odd y are always walls.
+	//the squares between two corridor squares are opened by the sidewinder algorithm: every corridor row but the
+	//first is cut into runs going east, and each run is joined to the row below through one of its squares.
+	//a row's runs only depend on that row, so any row can be generated on its own
+	private void corridorRow(int y, int baseWidth, int baseHeight, byte[] row){
+		boolean seams = !symmetry.equals(NONE);
+		RowRandom holes = random(y, HOLES);
+		if (y%2 == 0){
+			boolean[] east = new boolean[baseWidth];
+			boolean[] down = new boolean[baseWidth];
+			sidewinder(y/2, baseWidth, east, down);
+			for (int x=0; x<baseWidth; x++){
+				boolean open;
+				if (x%2 == 0){
+					open = true;
+				}
+				else if (x == baseWidth-1){
+					//the last column joins the copy of the base maze next to it, if there is one
+					open = seams;
+				}
+				else{
+					open = east[x-1] || holes.nextDouble() < loops;
+				}
+				row[x] = open ? 0 : (byte) Maze.WALL;
+			}
+		}
+		else{
+			//the wall row between corridor rows y-1 and y+1, opened where the row above joins this one
+			boolean[] east = new boolean[baseWidth];
+			boolean[] down = new boolean[baseWidth];
+			sidewinder((y+1)/2, baseWidth, east, down);
+			for (int x=0; x<baseWidth; x++){
+				boolean open;
+				if (x%2 == 1){
+					open = false;
+				}
+				else if (y == baseHeight-1){
+					//the last row joins the copy of the base maze above it, if there is one
+					open = seams;
+				}
+				else{
+					open = down[x] || holes.nextDouble() < loops;
+				}
+				row[x] = open ? 0 : (byte) Maze.WALL;
+			}
+		}
+	}
+
+	//The passages of one corridor row
+	//parameters: int corridor the index of the corridor row, boolean[] east set at the squares joined to the corridor
+	//square two to their right, boolean[] down set at the squares joined to the corridor row below
+	private void sidewinder(int corridor, int baseWidth, boolean[] east, boolean[] down){
+		RowRandom random = random(2*corridor, LAYOUT);
+		int start = 0;
+		for (int x=0; x<baseWidth; x+=2){
+			boolean last = x + 2 >= baseWidth;
+			if (corridor == 0){
+				east[x] = !last;
+				continue;
+			}
+			if (!last && random.nextBoolean()){
+				east[x] = true;
+			}
+			else{
+				//close the run, joining it to the row below through one of its squares
+				int squares = (x - start)/2 + 1;
+				down[start + 2*random.nextInt(squares)] = true;
+				start = x + 2;
+			}
+		}
+	}
+
+	//color the floor squares of a row
+	private void paint(int y, int baseWidth, byte[] row){
+		double total = 0;
+		for (double w: colorWeights){
+			total += w;
+		}
+
+		RowRandom random = random(y, PAINT);
+		for (int x=0; x<baseWidth; x++){
+			if (row[x] == Maze.WALL){
+				continue;
+			}
+			double u;
+			if (patch == 1){
+				u = random.nextDouble();
+			}
+			else{
+				//every square of a patch draws the same number
+				long h = HiddenMarkovModel.hash(HiddenMarkovModel.hash(HiddenMarkovModel.hash(seed, PAINT), x/patch), y/patch);
+				u = (h >>> 11)*0x1.0p-53;
+			}
+			double cumulative = 0;
+			int c = 0;
+			for (; c < COLORS.length-1; c++){
+				cumulative += colorWeights[c]/total;
+				if (u < cumulative){
+					break;
+				}
+			}
+			row[x] = COLORS[c];
+		}
+	}
+
+	//a random number generator for one stream of one base row, seeded from the maze seed
+	private RowRandom random(int y, int stream){
+		return new RowRandom(HiddenMarkovModel.hash(HiddenMarkovModel.hash(seed, y), stream));
+	}
+
+	//SplitMix64. java.util.Random is thread safe, and pays for it on every number, but a row's generator
+	//is only used by the thread making the row
+	private static class RowRandom {
+		private long state;
+
+		RowRandom(long seed){
+			state = seed;
+		}
+
+		long nextLong(){
+			long z = (state += 0x9e3779b97f4a7c15L);
+			z = (z ^ (z >>> 30))*0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27))*0x94d049bb133111ebL;
+			return z ^ (z >>> 31);
+		}
+
+		//uniform in [0, 1)
+		double nextDouble(){
+			return (nextLong() >>> 11)*0x1.0p-53;
+		}
+
+		boolean nextBoolean(){
+			return nextLong() < 0;
+		}
+
+		//uniform in [0, bound), the bias is below 2^-31 for any int bound
+		int nextInt(int bound){
+			return (int) (((nextLong() >>> 33)*bound) >>> 31);
+		}
+	}
+
+	private int rowsPerBlock(){
+		return Math.max(1, BLOCK_SQUARES/width);
+	}
+
+	private static ExecutorService newExecutor(){
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "maze generator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static <T> T get(Future<T> future) throws InterruptedException{
+		try{
+			return future.get();
+		}
+		catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		if (args.length < 3){
+			System.err.println("usage: MazeGenerator width height output.maz [-seed n] [-layout random|corridors] [-walls density] [-loops p] "
+					+ "[-colors r,g,b,y weights] [-patch size] [-symmetry none|mirror|tile] [-period tile size]");
+			System.exit(2);
+		}
+
+		long seed = 0;
+		for (int a=3; a+1<args.length; a+=2){
+			if (args[a].equals("-seed")){
+				seed = Long.parseLong(args[a+1]);
+			}
+		}
+		MazeGenerator generator = new MazeGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), seed);
+		for (int a=3; a<args.length; a+=2){
+			if (a+1 >= args.length){
+				System.err.println("missing value for " + args[a]);
+				System.exit(2);
+			}
+			String value = args[a+1];
+			if (args[a].equals("-seed")){
+				continue;
+			}
+			else if (args[a].equals("-layout")){
+				generator.setLayout(value);
+			}
+			else if (args[a].equals("-walls")){
+				generator.setWallDensity(Double.parseDouble(value));
+			}
+			else if (args[a].equals("-loops")){
+				generator.setLoops(Double.parseDouble(value));
+			}
+			else if (args[a].equals("-colors")){
+				String[] weights = value.split(",");
+				double[] w = new double[weights.length];
+				for (int c=0; c<w.length; c++){
+					w[c] = Double.parseDouble(weights[c]);
+				}
+				generator.setColorWeights(w);
+			}
+			else if (args[a].equals("-patch")){
+				generator.setColorPatch(Integer.parseInt(value));
+			}
+			else if (args[a].equals("-symmetry")){
+				generator.setSymmetry(value);
+			}
+			else if (args[a].equals("-period")){
+				generator.setTilePeriod(Integer.parseInt(value));
+			}
+			else{
+				System.err.println("unknown option " + args[a]);
+				System.exit(2);
+			}
+		}
+
+		long start = System.nanoTime();
+		generator.write(args[2]);
+		System.err.println(String.format("wrote %s in %.1f ms", args[2], (System.nanoTime() - start)/1e6));
+	}
+}
@@ -7,8 +7,12 @@ package PROT;
 
 import java.util.Hashtable;
 
+import org.la4j.vector.Vector;
+
 import javafx.scene.Group;
 import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.ImagePattern;
@@ -17,9 +21,21 @@ import javafx.scene.shape.Rectangle;
 
 public class MazeView extends Group {
 
+	//number of distinct shades used for the belief heat-map in canvas mode
+	private static final int HEAT_LEVELS = 32;
+
 	private int pixelsPerSquare;
 	private Maze maze;
 	
+	//canvas mode paints every tile and the belief heat-map onto one node instead of a node per square
+	private Canvas canvas;
+	private GraphicsContext graphics;
+	private Color[] heat; //heat-map shade for each level
+	private int[] drawnLevel; //the heat level currently painted for each variable, used to only redraw changed squares
+	
+	//node mode draws a probability bar for each variable
+	private Rectangle[] beliefBars;
+	
 	//for drawing the maze with colored tiles
 	private Hashtable<Character, Color> colormap;
 	
@@ -29,6 +45,12 @@ public class MazeView extends Group {
 	int currentColor;
 	
 	public MazeView(Maze m, int pixelsPerSquare) {
+		this(m, pixelsPerSquare, false);
+	}
+	
+	//parameters: boolean useCanvas. if true the maze and beliefs are painted onto a single canvas,
+	//which keeps the scene graph small for large mazes
+	public MazeView(Maze m, int pixelsPerSquare, boolean useCanvas) {
 		currentColor = 0;
 		
 		//for daring the maze with colored tiles
@@ -40,6 +62,24 @@ public class MazeView extends Group {
 		
 		maze = m;
 		this.pixelsPerSquare = pixelsPerSquare;
+		
+		if (useCanvas){
+			canvas = new Canvas(maze.width*pixelsPerSquare, maze.height*pixelsPerSquare);
+			graphics = canvas.getGraphicsContext2D();
+			
+			heat = new Color[HEAT_LEVELS + 1];
+			for (int level=0; level<=HEAT_LEVELS; level++){
+				heat[level] = Color.color(0, 0, 0, .85*level/HEAT_LEVELS);
+			}
+			
+			for (int c = 0; c < maze.width; c++) {
+				for (int r = 0; r < maze.height; r++) {
+					paintSquare(c, r);
+				}
+			}
+			this.getChildren().add(canvas);
+			return;
+		}
 
 		//draw maze
 		for (int c = 0; c < maze.width; c++) {
@@ -122,5 +162,68 @@ public class MazeView extends Group {
 	public void updateProbability(Rectangle rect, double probability){
 		rect.setHeight(pixelsPerSquare*probability);
 	}
+	
+	//draw a belief state
+	//in node mode each variable gets a probability bar, in canvas mode each square is shaded relative to the most likely square
+	//and only squares whose shade changed since the last call are repainted
+	//parameters: Vector belief the distribution over the variables, int[] variables the maze location of each variable
+	public void updateBeliefs(Vector belief, int[] variables){
+		if (canvas == null){
+			if (beliefBars == null){
+				beliefBars = new Rectangle[variables.length];
+				for (int i=0; i<variables.length; i++){
+					beliefBars[i] = addState(variables[i]%maze.width, variables[i]/maze.width, belief.get(i));
+				}
+				return;
+			}
+			for (int i=0; i<variables.length; i++){
+				updateProbability(beliefBars[i], belief.get(i));
+			}
+			return;
+		}
+		
+		if (drawnLevel == null){
+			drawnLevel = new int[variables.length];
+		}
+		
+		double max = 0;
+		for (int i=0; i<variables.length; i++){
+			max = Math.max(max, belief.get(i));
+		}
+		
+		for (int i=0; i<variables.length; i++){
+			int level = max > 0 ? (int) Math.round(HEAT_LEVELS*belief.get(i)/max) : 0;
+			if (level != drawnLevel[i]){
+				int c = variables[i]%maze.width;
+				int r = variables[i]/maze.width;
+				paintSquare(c, r);
+				if (level > 0){
+					graphics.setFill(heat[level]);
+					graphics.fillRect(squareCornerX(c), squareCornerY(r, 0), pixelsPerSquare, pixelsPerSquare);
+				}
+				drawnLevel[i] = level;
+			}
+		}
+	}
+	
+	//paint the tile of a single square onto the canvas
+	private void paintSquare(int c, int r){
+		int x = squareCornerX(c);
+		int y = squareCornerY(r, 0);
+		
+		graphics.clearRect(x, y, pixelsPerSquare, pixelsPerSquare);
+		if(colormap.containsKey(maze.getChar(c, r))) {
+			graphics.setFill(colormap.get(maze.getChar(c,r)));
+			graphics.fillRect(x, y, pixelsPerSquare, pixelsPerSquare);
+		} else {
+			graphics.drawImage(stripes, x, y, pixelsPerSquare, pixelsPerSquare);
+		}
+		
+		//grid lines are just noise once the squares are a few pixels wide
+		if (pixelsPerSquare > 4){
+			graphics.setStroke(Color.GRAY);
+			graphics.strokeRect(x, y, pixelsPerSquare, pixelsPerSquare);
+		}
+	}
 
 }
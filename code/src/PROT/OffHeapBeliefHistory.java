@@ -0,0 +1,140 @@
+/**
+ * OffHeapBeliefHistory stores a sequence of belief states (one probability vector per time step)
+ * outside of the java heap, either in direct memory or in a memory mapped file
+ *
+ * long smoothing jobs produce T vectors of S doubles. Keeping them in direct/mapped buffers means
+ * the garbage collector never has to trace or copy them, and a file backed history can grow past the heap size
+ *
+ * the public methods are a read-only view; only the inference code in this package writes to a history
+ */
+
+package PROT;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.la4j.vector.Vector;
+import org.la4j.vector.dense.BasicVector;
+
+public class OffHeapBeliefHistory {
+
+	//a single buffer can address at most Integer.MAX_VALUE bytes, so the history is split into slabs
+	private static final long MAX_SLAB_BYTES = Integer.MAX_VALUE - 7;
+
+	private final int steps; //number of time slices
+	private final int numVariables; //length of each belief vector
+	private final int stepsPerSlab;
+
+	private final DoubleBuffer[] slabs;
+	private final MappedByteBuffer[] mapped; //null when the history lives in direct memory
+	private RandomAccessFile file;
+
+	//Create a history of steps x numVariables doubles
+	//parameters: filename of the backing file, or null to keep the history in direct memory
+	OffHeapBeliefHistory(int steps, int numVariables, String filename) throws IOException{
+		if (steps < 0 || numVariables < 1){
+			throw new IllegalArgumentException("bad history size " + steps + "x" + numVariables);
+		}
+		this.steps = steps;
+		this.numVariables = numVariables;
+
+		long bytesPerStep = 8L*numVariables;
+		stepsPerSlab = (int) Math.max(1, Math.min(Math.max(steps, 1), MAX_SLAB_BYTES/bytesPerStep));
+		int numSlabs = (steps + stepsPerSlab - 1)/stepsPerSlab;
+
+		slabs = new DoubleBuffer[numSlabs];
+
+		if (filename == null){
+			mapped = null;
+			for (int s=0; s<numSlabs; s++){
+				int slabSteps = Math.min(stepsPerSlab, steps - s*stepsPerSlab);
+				ByteBuffer buffer = ByteBuffer.allocateDirect((int) (slabSteps*bytesPerStep));
+				slabs[s] = buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+			return;
+		}
+
+		mapped = new MappedByteBuffer[numSlabs];
+		file = new RandomAccessFile(new File(filename), "rw");
+		try{
+			file.setLength(steps*bytesPerStep);
+			FileChannel channel = file.getChannel();
+			for (int s=0; s<numSlabs; s++){
+				int slabSteps = Math.min(stepsPerSlab, steps - s*stepsPerSlab);
+				mapped[s] = channel.map(FileChannel.MapMode.READ_WRITE, s*stepsPerSlab*bytesPerStep, slabSteps*bytesPerStep);
+				slabs[s] = mapped[s].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+		}
+		catch (IOException e){
+			file.close();
+			throw e;
+		}
+	}
+
+	//number of time slices in the history
+	public int length(){
+		return steps;
+	}
+
+	//number of state variables in each time slice
+	public int numVariables(){
+		return numVariables;
+	}
+
+	//get P(X_t = variable)
+	public double get(int t, int variable){
+		checkIndex(t);
+		if (variable < 0 || variable >= numVariables){
+			throw new IndexOutOfBoundsException("variable " + variable);
+		}
+		return slabs[t/stepsPerSlab].get((t%stepsPerSlab)*numVariables + variable);
+	}
+
+	//copy the belief state at time t into a caller supplied array
+	//returns the array
+	public double[] copy(int t, double[] into){
+		checkIndex(t);
+		DoubleBuffer view = slabs[t/stepsPerSlab].duplicate();
+		view.position((t%stepsPerSlab)*numVariables);
+		view.get(into, 0, numVariables);
+		return into;
+	}
+
+	//copy the belief state at time t onto the heap as an la4j vector
+	public Vector getVector(int t){
+		return new BasicVector(copy(t, new double[numVariables]));
+	}
+
+	//write the belief state at time t
+	void put(int t, double[] values){
+		checkIndex(t);
+		DoubleBuffer view = slabs[t/stepsPerSlab].duplicate();
+		view.position((t%stepsPerSlab)*numVariables);
+		view.put(values, 0, numVariables);
+	}
+
+	//flush a file backed history to disk and release the file handle
+	//the mapped pages remain readable until the history is garbage collected
+	public void close() throws IOException{
+		if (file == null){
+			return;
+		}
+		for (MappedByteBuffer buffer: mapped){
+			buffer.force();
+		}
+		file.close();
+		file = null;
+	}
+
+	private void checkIndex(int t){
+		if (t < 0 || t >= steps){
+			throw new IndexOutOfBoundsException("time " + t + " of " + steps);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * PosteriorQuery answers P(X_k|e_1:T) for any time k of a fixed observation log without smoothing the whole log
+ *
+ * building a query runs one forward and one backward pass and keeps the normalized messages only every interval
+ * steps. The log is split into segments of interval time steps. The first question about a time in a segment
+ * filters forward from the forward checkpoint at its start and runs backward from the backward checkpoint at its end,
+ * which smooths every time in the segment for two segments' worth of steps. Smoothed segments are kept in least
+ * recently used order, and once there are more than maxSegments of them the oldest is dropped
+ *
+ * with the default interval of sqrt(T) the checkpoints and each segment hold about sqrt(T) belief states,
+ * so a day long log needs a few hundred belief states instead of one per observation
+ *
+ * a query is safe to share between threads, the questions are answered one at a time
+ */
+
+package PROT;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PosteriorQuery {
+
+	//the most memory the smoothed segments use by default, at least two segments are always kept
+	public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+	private final HiddenMarkovModel model;
+	private final int[] obs;
+	private final int length; //number of observations
+	private final int numVariables;
+	private final int interval; //time steps per segment
+	private final int maxSegments;
+
+	//forward[s] is P(X_t|e_1:t) at t = s*interval, time 0 is the prior
+	private final double[][] forward;
+	//backward[s] is the normalized P(e_t+1:T|X_t) at t = s*interval, time 0 is not kept
+	private final double[][] backward;
+
+	private final double logLikelihood;
+
+	//smoothed segments by number, least recently used first
+	private final LinkedHashMap<Integer, double[][]> segments;
+
+	private final double[] scratch;
+	private final double[] message;
+
+	//statistics
+	private long queries = 0;
+	private long recomputed = 0; //segments smoothed
+
+	//Checkpoints every sqrt(T) steps, and as many segments as fit in DEFAULT_CACHE_BYTES
+	public PosteriorQuery(HiddenMarkovModel model, int[] obs){
+		this(model, obs, (int) Math.ceil(Math.sqrt(obs.length + 1)), 0);
+	}
+
+	//parameters: int[] obs the observation log, it is copied, int interval time steps between checkpoints, which is also
+	//the number of belief states in a segment, int maxSegments the most smoothed segments kept, 0 for as many as fit in
+	//DEFAULT_CACHE_BYTES
+	public PosteriorQuery(HiddenMarkovModel model, int[] obs, int interval, int maxSegments){
+		if (interval < 1 || maxSegments < 0){
+			throw new IllegalArgumentException("bad interval " + interval + " or cache size " + maxSegments);
+		}
+		this.model = model;
+		this.obs = obs.clone();
+		this.length = obs.length;
+		this.numVariables = model.numVariables();
+		this.interval = interval;
+		if (maxSegments == 0){
+			long segmentBytes = 8L*interval*numVariables;
+			maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, DEFAULT_CACHE_BYTES/segmentBytes));
+		}
+		this.maxSegments = maxSegments;
+
+		segments = new LinkedHashMap<Integer, double[][]>(16, .75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, double[][]> eldest){
+				return size() > PosteriorQuery.this.maxSegments;
+			}
+		};
+
+		scratch = new double[numVariables];
+		message = new double[numVariables];
+
+		int numCheckpoints = length/interval + 1;
+		forward = new double[numCheckpoints][];
+		backward = new double[numCheckpoints][];
+
+		//forward pass, keep every interval-th message
+		double[] current = new double[numVariables];
+		for (int i=0; i<numVariables; i++){
+			current[i] = model.getPrior(i);
+		}
+		forward[0] = current.clone();
+		double ll = 0;
+		double[] next = new double[numVariables];
+		for (int t=1; t<=length; t++){
+			double sum = model.forwardStep(current, this.obs[t-1], next, next);
+			if (this.obs[t-1] != HiddenMarkovModel.MISSING){
+				ll += Math.log(sum);
+			}
+			double[] swap = current;
+			current = next;
+			next = swap;
+			if (t%interval == 0){
+				forward[t/interval] = current.clone();
+			}
+		}
+		logLikelihood = ll;
+
+		//backward pass, the message at the end of the log is all ones
+		double[] b = current;
+		Arrays.fill(b, 1.0);
+		for (int t=length; t>0; t--){
+			if (t%interval == 0){
+				backward[t/interval] = b.clone();
+			}
+			model.backwardStep(b, this.obs[t-1], next);
+			double[] swap = b;
+			b = next;
+			next = swap;
+		}
+	}
+
+	//number of observations in the log
+	public int length(){
+		return length;
+	}
+
+	//log P(e_1:T) of the whole log
+	public double logLikelihood(){
+		return logLikelihood;
+	}
+
+	//Copy the smoothed belief state P(X_t|e_1:T) into a caller supplied array, time 0 is the prior
+	//(the same layout as HiddenMarkovModel.smoothing())
+	//returns the array
+	public synchronized double[] getPosterior(int t, double[] into){
+		checkTime(t);
+		queries++;
+		System.arraycopy(segment(t/interval)[t%interval], 0, into, 0, numVariables);
+		return into;
+	}
+
+	public double[] getPosterior(int t){
+		return getPosterior(t, new double[numVariables]);
+	}
+
+	//The smoothed belief states of a window of time steps
+	//
+	//returns to-from+1 new belief states, for times from..to
+	//parameters: int from, int to the first and last time of the window
+	public synchronized double[][] getPosteriors(int from, int to){
+		checkTime(from);
+		checkTime(to);
+		if (to < from){
+			throw new IllegalArgumentException("window " + from + ".." + to);
+		}
+		queries++;
+		double[][] window = new double[to - from + 1][];
+		double[][] rows = null;
+		for (int t=from; t<=to; t++){
+			if (rows == null || t%interval == 0){
+				rows = segment(t/interval);
+			}
+			window[t - from] = rows[t%interval].clone();
+		}
+		return window;
+	}
+
+	//returns the smoothed belief states of segment s, computing them if they aren't cached
+	private double[][] segment(int s){
+		double[][] rows = segments.get(s);
+		if (rows != null){
+			return rows;
+		}
+		recomputed++;
+		int start = s*interval;
+		int end = Math.min(start + interval, length + 1); //exclusive
+		rows = new double[end - start][];
+
+		//filter from the checkpoint at the start of the segment
+		rows[0] = forward[s].clone();
+		for (int t=start+1; t<end; t++){
+			double[] next = new double[numVariables];
+			model.forwardStep(rows[t - start - 1], obs[t-1], next, next);
+			rows[t - start] = next;
+		}
+
+		//run backward from the checkpoint at the end of the segment, smoothing each forward message on the way
+		double[] b = message;
+		double[] previous = scratch;
+		if (end > length){
+			Arrays.fill(b, 1.0);
+		}
+		else{
+			model.backwardStep(backward[s + 1], obs[end-1], b);
+		}
+		for (int t=end-1; t>=start; t--){
+			//time 0 stays the prior
+			if (t > 0){
+				double[] row = rows[t - start];
+				for (int i=0; i<numVariables; i++){
+					row[i] *= b[i];
+				}
+				HiddenMarkovModel.normalize(row);
+			}
+			if (t > start){
+				model.backwardStep(b, obs[t-1], previous);
+				double[] swap = b;
+				b = previous;
+				previous = swap;
+			}
+		}
+
+		segments.put(s, rows);
+		return rows;
+	}
+
+	private void checkTime(int t){
+		if (t < 0 || t > length){
+			throw new IndexOutOfBoundsException("time " + t + " of " + length);
+		}
+	}
+
+	//returns the number of smoothed segments in the cache
+	public synchronized int numCachedSegments(){
+		return segments.size();
+	}
+
+	//returns the number of queries answered
+	public synchronized long numQueries(){
+		return queries;
+	}
+
+	//returns the number of segments smoothed, including ones smoothed again after being dropped
+	public synchronized long numRecomputed(){
+		return recomputed;
+	}
+
+	//drop every smoothed segment, the checkpoints are kept
+	public synchronized void clear(){
+		segments.clear();
+	}
+}
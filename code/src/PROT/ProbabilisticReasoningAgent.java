@@ -4,26 +4,39 @@
  * 
  * ProbabilisticReasoningAgent is an abstract class containing forward, forward-backward, and viterbi algorithms
  * 
- * I've implemented forward and forward backward algorithms using matrices which is accomplished using the la4j linear algebra library
- * Viterbi is implemented without la4j
+ * filtering, smoothing and viterbi all run on the agent's sparse HiddenMarkovModel (see getModel()), in its
+ * normalized and log-space loops, so long logs neither underflow nor recurse once per observation.
+ * la4j is only used at the edges: models set as matrices (setT(), setO()) are converted to the sparse model the first
+ * time it is needed, and getT(), getO() and the belief states hand la4j matrices and vectors back to callers
  */
 
 package PROT;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import org.la4j.matrix.Matrix;
+import org.la4j.matrix.dense.Basic2DMatrix;
 import org.la4j.vector.Vector;
 import org.la4j.vector.dense.BasicVector;
 
 public abstract class ProbabilisticReasoningAgent{
 	
 	//transition and observation models are represented as a lists of matrices, which are instantiated in concrete classes
+	//
+	//the models are also kept as an immutable HiddenMarkovModel, which can be shared between threads.
+	//a concrete class sets either the matrices or the model, the other representation is built the first time it is needed
 	
 	private Matrix transition_model; //#variables x #variables
 	private Matrix[] observation_model; //list of diagonal matrices each matrix corresponds to an observation model for a particular observation value #vars x #vars
+	
+	private Matrix missing_observation_model; //the identity, built the first time a missing observation asks for it
+	
+	private HiddenMarkovModel model;
+	private ForwardCache forward_cache; //optional, see enableForwardCache()
+	private int forward_cache_entries = 0; //the capacity the cache is rebuilt with when the model changes, 0 for none
 
-	public ArrayList<Vector> state; //probability distribution of state variables over time
+	public ArrayList<Vector> state; //probability distribution of state variables at time 0
 	
 	//Set the state at time 0. At time 0, the distribution of state variables should be Uniform
 	//Parameter: numVariables used to set Vector length and get the Uniform probability
@@ -45,21 +58,83 @@ public abstract class ProbabilisticReasoningAgent{
 		state.add(initial_state);
 	}
 	
-	protected void setT(Matrix t){
+	protected synchronized void setT(Matrix t){
 		transition_model = t;
+		missing_observation_model = null;
+		model = null;
+		forward_cache = null; //rebuilt on the new model by getForwardCache()
 	}
 	
-	protected void setO(Matrix[] o){
+	protected synchronized void setO(Matrix[] o){
 		observation_model = o;
+		missing_observation_model = null;
+		model = null;
+		forward_cache = null; //rebuilt on the new model by getForwardCache()
 	}
 	
-	public Matrix getT(){
+	//set the transition and observation models from a sparse model, the dense matrices are only built if they are asked for
+	protected synchronized void setModel(HiddenMarkovModel m){
+		model = m;
+		transition_model = null;
+		observation_model = null;
+		missing_observation_model = null;
+		forward_cache = null; //rebuilt on the new model by getForwardCache()
+	}
+
+	//set the models from operators that declare their structure, so filtering and smoothing run on the fastest kernel
+	//for it (see TransitionOperator and EmissionModel)
+	protected synchronized void setModel(TransitionOperator t, EmissionModel o, double[] initial){
+		setModel(HiddenMarkovModel.fromOperators(t, o, initial));
+	}
+
+	public synchronized Matrix getT(){
+		if (transition_model == null){
+			int n = model.numVariables();
+			double[][] t = new double[n][n];
+			for (int i=0; i<n; i++){
+				for (int j=0; j<n; j++){
+					t[i][j] = model.getTransition(i, j);
+				}
+			}
+			transition_model = new Basic2DMatrix(t);
+		}
 		return transition_model;
 	}
 
-	public Matrix getO(int i){
+	//a missing observation carries no evidence, its observation matrix is the identity
+	public synchronized Matrix getO(int i){
+		if (i == HiddenMarkovModel.MISSING){
+			if (missing_observation_model == null){
+				int n = getModel().numVariables();
+				double[][] identity = new double[n][n];
+				for (int j=0; j<n; j++){
+					identity[j][j] = 1;
+				}
+				missing_observation_model = new Basic2DMatrix(identity);
+			}
+			return missing_observation_model;
+		}
+		if (observation_model == null){
+			int n = model.numVariables();
+			observation_model = new Matrix[model.numObservations()];
+			for (int o=0; o<observation_model.length; o++){
+				double[][] diagonal = new double[n][n];
+				for (int j=0; j<n; j++){
+					diagonal[j][j] = model.getEmission(o, j);
+				}
+				observation_model[o] = new Basic2DMatrix(diagonal);
+			}
+		}
 		return observation_model[i];
 	}
+	
+	//the immutable model, shareable between threads
+	public synchronized HiddenMarkovModel getModel(){
+		if (model == null){
+			model = HiddenMarkovModel.fromMatrices(transition_model, observation_model, state.get(0));
+		}
+		return model;
+	}
 
 	public ArrayList<Vector> getState(){
 		return state;
@@ -69,224 +144,217 @@ public abstract class ProbabilisticReasoningAgent{
 	//
 	//returns a sequence of belief states at each step of the observation
 	//parameters: int[] obs is the sequence of observations
+	//
+	//every step runs on the sparse model, a missing observation is a prediction step with no evidence
 	public ArrayList<Vector> filter(int[] obs){
-		ArrayList<Vector> forward_vector = new ArrayList<Vector>();
-		forward_vector.add(state.get(0));
-		return forward(forward_vector.get(0), obs, forward_vector, 0, false);
+		HiddenMarkovModel m = getModel();
+		ArrayList<Vector> forward_vector = new ArrayList<Vector>(obs.length + 1);
+		Vector initial = state.get(0);
+		forward_vector.add(initial);
+		
+		double[] previous = toArray(initial, new double[initial.length()]);
+		for (int t=0; t<obs.length; t++){
+			double[] current = new double[previous.length];
+			m.forwardStep(previous, obs[t], current, current);
+			forward_vector.add(new BasicVector(current));
+			previous = current;
+		}
+		return forward_vector;
 	}
 
-	//Compute the Belief State at time k: P(State_0:k|sequenceOfObservations_1:k)*PsequenceOfObservations_k+1:t|State_k+1:t)
+	//Compute the Belief State at time t, notifying a listener as each step is computed
 	//
 	//returns a sequence of belief states at each step of the observation
-	//parameters: int[] obs is the sequence of observations
-	public ArrayList<Vector> smoothing(int[] obs){
-		return forwardBackward(obs);
+	//parameters: int[] obs is the sequence of observations, BeliefListener listener is told about every belief state, starting at time 0
+	public ArrayList<Vector> filter(int[] obs, BeliefListener listener){
+		ArrayList<Vector> forward_vector = new ArrayList<Vector>();
+		Vector current = state.get(0);
+		forward_vector.add(current);
+		listener.beliefUpdated(0, current);
+		
+		for (int t=0; t<obs.length; t++){
+			current = filterStep(current, obs[t]);
+			forward_vector.add(current);
+			listener.beliefUpdated(t+1, current);
+		}
+		return forward_vector;
 	}
 	
-	//Compute the Most Likely Path through the state space given a sequence of observations
+	//Advance a belief state by one observation: a*O*T*(prev_forward)
 	//
-	//I didn't use la4j in Viterbi
+	//returns the belief state at time t
+	//parameters: Vector prev_forward the belief state at time t-1, int observation the observation at time t
+	public Vector filterStep(Vector prev_forward, int observation){
+		HiddenMarkovModel m = getModel();
+		double[] previous = toArray(prev_forward, new double[prev_forward.length()]);
+		double[] current = new double[previous.length];
+		m.forwardStep(previous, observation, current, current);
+		return new BasicVector(current);
+	}
+
+	//Compute the Belief State at time k: P(State_0:k|sequenceOfObservations_1:k)*PsequenceOfObservations_k+1:t|State_k+1:t)
 	//
-	//returns an array of ints representing state variables
+	//returns a sequence of belief states at each step of the observation
 	//parameters: int[] obs is the sequence of observations
-	public int[] mostLikelySequence(int[] obs){
-		//initialize state at t0: 
-		double[] start_probability = new double[transition_model.rows()];
-		Arrays.fill(start_probability, 1);
-		return viterbi(obs, 0, start_probability, new int[obs.length][]);
-	}
-	
-	//Backtrack through the most likely path
-	//at each time t, a variable points backward to which state most likely transitioned to it
 	//
-	//returns int[] path. an array of ints representing the most likely path through state space
-	//parameters: viterbiPath is the set of backpointers at every time t, double[] past_probabilities the distribution of state variables over time t
-	private int[] backtracking(int[][] viterbiPath, double[] past_probabilities){
-		//System.out.println(past_probabilities[26] + " " + past_probabilities[7] + " " + past_probabilities[9]+ " " + past_probabilities[13]+ " " + past_probabilities[16]+ " " + past_probabilities[20] + " " + past_probabilities[35]);
-		int[] path = new int[viterbiPath.length];
+	//runs the model's forward-backward on the sparse model (see HiddenMarkovModel.smoothing())
+	public ArrayList<Vector> smoothing(int[] obs){
+		double[][] smoothed = getModel().smoothing(obs);
 		
-		//Find the most probable state at time t
-		//we will backtrack through the path that let to this state
-		int max = 0;
-		double max_prob = 0;
-		for (int j=0; j<past_probabilities.length; j++){
-			if (max_prob<past_probabilities[j]){
-				max = j;
-				max_prob = past_probabilities[j];
-			}
+		//a new list every call, the time 0 state is shared but never changed
+		ArrayList<Vector> states = new ArrayList<Vector>(obs.length + 1);
+		states.add(state.get(0));
+		for (int t=1; t<=obs.length; t++){
+			states.add(new BasicVector(smoothed[t]));
 		}
-		
-		
-		path[viterbiPath.length-1] = max;
-		return backtracking(viterbiPath, viterbiPath.length-1, path);
+		return states;
 	}
 	
-	//Backtrack through the most likely path
-	//at each time t, a variable points backward to which state most likely transitioned to it
+	//Smoothing for long observation sequences. The belief states are kept off the java heap
 	//
-	//returns int[] path
-	//parameters: viterbiPath is the set of backpointers at every time t, 
-	private int[] backtracking(int[][] viterbiPath, int t, int[] path){
-		
-		//Base Case
-		if (t == 0){
-			return path;
-		}
-		
-		//recursive case
-		path[t-1] = viterbiPath[t][path[t]];
-		return backtracking(viterbiPath, t-1, path);
-		
-	}
-	
-	//Recursive Viterbi: At time t, find the most probable path for every state variable from t-1 to t
+	//the forward messages are normalized at every step so they don't underflow, and are written into the history.
+	//the backward pass then overwrites each time slice in place with the smoothed belief state,
+	//so only the current forward and backward vectors are ever on the heap
 	//
-	//returns the most likely path through the state space
-	//parameters: int[] obs the sequence of observations, int t the current time slice t,
-	//double[] past_probabilities the probability distribution of state variables at time t-1, int[][] viterbiPath set of backPointers for every t
-	private int[] viterbi(int[] obs, int t, double[] past_probabilities, int[][] viterbiPath){
-		
-		//Base Case
-		
-		//backtrack through the set of backpointers
-		if (t >= obs.length){
-			return backtracking(viterbiPath, past_probabilities);
-		}
-		
-		//Recursive Case
-		
-		//get Ot
-		Matrix obs_mod = observation_model[obs[t]];
-		
-		//new set of backpointers and set of probability distribution over state variables
-		int[] subPath = new int[past_probabilities.length];
-		double[] current_probabilities = new double[past_probabilities.length];
-		
-		//for every variable x_t, get the max P(x1_t|X_t-1)
-		for (int state_variable_current=0; state_variable_current<transition_model.rows(); state_variable_current++){
-			
-			int max = 0; //the max variable
-			double max_prob = 0; //the max probability
-			double full_prob = 0;
-			
-			//for every variable x_t-1
-			for (int state_variable_past=0; state_variable_past<transition_model.columns(); state_variable_past++){
-				
-				double probabilityOfstate_variable = transition_model.get(state_variable_current, state_variable_past)*obs_mod.get(state_variable_current, state_variable_current)*past_probabilities[state_variable_past];
-								
-				if (probabilityOfstate_variable > max_prob){
-					max = state_variable_past;
-					max_prob = probabilityOfstate_variable;
-				}
-				full_prob += probabilityOfstate_variable;
-	
-			}
-			
-			//add backpointer
-			subPath[state_variable_current] = max;
-			
-			if (obs.length-1 == t){
-				System.out.println(state_variable_current + " " + max_prob);
-				//add max P(x_t|X_t-1)
-				current_probabilities[state_variable_current] += full_prob;
+	//returns a history of obs.length+1 belief states, time 0 is the initial state (same layout as smoothing())
+	//parameters: int[] obs is the sequence of observations, filename of the backing file or null for direct memory
+	public OffHeapBeliefHistory smoothingOffHeap(int[] obs, String filename) throws IOException{
+		HiddenMarkovModel m = getModel();
+		int numVariables = m.numVariables();
+		OffHeapBeliefHistory history = new OffHeapBeliefHistory(obs.length + 1, numVariables, filename);
+
+		WorkspacePool pool = m.getWorkspacePool();
+		InferenceWorkspace workspace = pool.acquire();
+		try{
+			double[] buffer = toArray(state.get(0), workspace.belief);
+			history.put(0, buffer);
+
+			//forward pass
+			for (int t=0; t<obs.length; t++){
+				m.forwardStep(workspace.belief, obs[t], workspace.scratch, workspace.scratch);
+				workspace.swap();
+				history.put(t+1, workspace.belief);
 			}
-			else{
-				//add P(x_t|X_t-1)
-				current_probabilities[state_variable_current] = max_prob;
+
+			//backward pass, the backward message at the last time slice is filled with ones
+			double[] backward = new double[numVariables];
+			double[] previous = new double[numVariables];
+			Arrays.fill(backward, 1.0);
+			for (int t=obs.length; t>0; t--){
+				double[] smoothed = history.copy(t, workspace.belief);
+				for (int i=0; i<numVariables; i++){
+					smoothed[i] *= backward[i];
+				}
+				HiddenMarkovModel.normalize(smoothed);
+				history.put(t, smoothed);
+
+				m.backwardStep(backward, obs[t-1], previous);
+				double[] swap = backward;
+				backward = previous;
+				previous = swap;
 			}
-	
 		}
-		viterbiPath[t] = subPath;
-		
-		//recurse
-		return viterbi(obs, t+1, current_probabilities, viterbiPath);
-	}
-	
-	//Compute the Belief State at time k: P(State_0:k|sequenceOfObservations_1:k)*PsequenceOfObservations_k+1:t|State_k+1:t)
-	//
-	//returns a sequence of belief states at each step of the observation
-	//parameters: int[] obs is the sequence of observations
-	private ArrayList<Vector> forwardBackward(int[] obs){
-		
-		ArrayList<Vector> forward_vectors = new ArrayList<Vector>();
-		forward(state.get(0), obs, forward_vectors, 0, true);
-		
-		ArrayList<Vector> backward_vectors = new ArrayList<Vector>();
-		
-		//backwards algorithm starts with a vector filled with ones
-		double[] firstBack = new double[state.get(0).length()];
-		Arrays.fill(firstBack, 1.0);
-		backward_vectors.add(0,new BasicVector(firstBack));
-		
-		backward(backward_vectors.get(0), obs, obs.length-1, backward_vectors, true);
-		
-		for (int i=0; i<obs.length; i++){
-			state.add(normalize(forward_vectors.get(i).hadamardProduct(backward_vectors.get(i))));
+		finally{
+			pool.release(workspace);
 		}
-		return state;
+		return history;
 	}
-	
-	private ArrayList<Vector> forward(Vector prev_forward, int[] obs,  ArrayList<Vector> state_to_t, int t, boolean isFB){
-		//Base Case
-		if (t >= obs.length){
-			return state_to_t;
-		}
-	
-		//Recursive Case		
-		Vector current = null;
-		//not used for forward backward, normalize
-		if (isFB == false){
-			//new matrix = a*O*Transpose(T)*(prev_forward)
-			current = normalize(getO(obs[t]).multiply(getT()).multiply(prev_forward));
-		}
-		else{
-			//new matrix = a*O*Transpose(T)*(prev_forward)
-			current = getO(obs[t]).multiply(getT()).multiply(prev_forward);
+
+	//Start a smoothing session for a log that grows over time, see SmoothingSession
+	public SmoothingSession newSmoothingSession(){
+		return new SmoothingSession(getModel());
+	}
+
+	//Smoothed belief states of a long log computed only for the times asked about, see PosteriorQuery
+	public PosteriorQuery posteriorQuery(int[] obs){
+		return new PosteriorQuery(getModel(), obs);
+	}
+
+	//Smoothing with the belief states kept in direct memory
+	public OffHeapBeliefHistory smoothingOffHeap(int[] obs) throws IOException{
+		return smoothingOffHeap(obs, null);
+	}
+
+	//copy a vector into an array
+	private double[] toArray(Vector v, double[] into){
+		for (int i=0; i<v.length(); i++){
+			into[i] = v.get(i);
 		}
-		
-		state_to_t.add(current);
-		
-		//recursiveCall
-		return forward(current, obs, state_to_t, t+1, isFB);
+		return into;
 	}
-	
-	//Normalize a vector
-	private Vector normalize(Vector notNormalized){
-	return notNormalized.multiply((1/notNormalized.sum()));
+
+	//The most likely paths through the state space, best first, each computed when it is asked for
+	//
+	//returns an iterator of paths and their log probabilities. Its first path is the one mostLikelySequence() finds,
+	//both run on the model's log-space viterbi
+	//parameters: int[] obs is the sequence of observations
+	public KBestViterbi mostLikelySequences(int[] obs){
+		return new KBestViterbi(getModel(), obs);
 	}
 	
-	private ArrayList<Vector> backward(Vector prev_backward, int[] obs, int t, ArrayList<Vector> state_to_1, boolean isFB){
-		//Base Case
-		if (t < 1){
-			return state_to_1;
-		}
+	//Compute the Most Likely Path through the state space given a sequence of observations
+	//
+	//runs the model's viterbi, which works on the sparse transition model in log space so long logs neither
+	//underflow nor recurse once per observation
+	//
+	//returns an array of ints representing state variables
+	//parameters: int[] obs is the sequence of observations
+	public int[] mostLikelySequence(int[] obs){
+		return getModel().mostLikelySequence(obs);
+	}
 	
-		//Recursive Case
-		
-		Vector current = null;
-		if (isFB != true){
-			//new matrix = a*T*O*(prev_backward)
-			current = normalize(getT().multiply(getO(obs[t])).multiply(prev_backward));
-		}
-		else{
-			//new matrix = T*O*(prev_backward)
-			current = getT().multiply(getO(obs[t])).multiply(prev_backward);
+	//Compute the Belief State after the last observation: P(X_t|e_1:t)
+	//if a forward cache is attached it is used to skip the prefix shared with earlier queries. filter() returns
+	//every belief state along the way, so it always starts from time 0
+	//
+	//returns a new array with the belief state
+	//parameters: int[] obs is the sequence of observations
+	public double[] filterBelief(int[] obs){
+		ForwardCache cache = getForwardCache();
+		if (cache != null){
+			return cache.filter(obs);
 		}
-		
-		state_to_1.add(0, current);
-		
-		//recursiveCall
-		return backward(current, obs, t-1, state_to_1, isFB);
+		return getModel().filter(obs);
 	}
 	
 	//compute the likelihood of a sequence
+	//this underflows to 0 for long sequences, use logLikelihood() for those
 	public double likelihood(int[] obs){
-		filter(obs);
-		return state.get(state.size()-1).sum();
+		return Math.exp(logLikelihood(obs));
+	}
+	
+	//compute the log likelihood of a sequence, log P(e_1:t)
+	//if a forward cache is attached it is used to skip the prefix shared with earlier queries
+	public double logLikelihood(int[] obs){
+		ForwardCache cache = getForwardCache();
+		if (cache != null){
+			return cache.logLikelihood(obs);
+		}
+		return getModel().logLikelihood(obs);
 	}
 	
 	//compute the likelihood of a
 	public double likelihood(){
 		return state.get(state.size()-1).sum();
 	}
+	
+	//attach a cache of forward messages keyed by observation prefix, used by filterBelief(), logLikelihood() and likelihood()
+	//
+	//a cache belongs to the model it was built on. When the model changes (setModel(), or a live edit such as
+	//SensorRobot.setWall()) the agent starts an empty cache of the same size on the new model, and the one returned
+	//here keeps answering for the old model, so get the current one from getForwardCache()
+	//parameters: int maxEntries the most forward messages to keep
+	public synchronized ForwardCache enableForwardCache(int maxEntries){
+		forward_cache = new ForwardCache(getModel(), maxEntries);
+		forward_cache_entries = maxEntries;
+		return forward_cache;
+	}
+	
+	//the attached forward cache for the current model, or null
+	public synchronized ForwardCache getForwardCache(){
+		if (forward_cache == null && forward_cache_entries > 0){
+			forward_cache = new ForwardCache(getModel(), forward_cache_entries);
+		}
+		return forward_cache;
+	}
 }
\ No newline at end of file
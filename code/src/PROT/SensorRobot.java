@@ -4,52 +4,72 @@
  * 
  * SensorRobot implements ProbabilisticReasoningAgent
  * 
- * creates transition and observation models. Matrices and Vectors are implemented with the la4j library
+ * creates transition and observation models (a GridMotion and a ColorSensor). Matrices and Vectors are implemented with the la4j library
  */
 
 package PROT;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Random;
 
-import org.la4j.matrix.Matrix;
-import org.la4j.matrix.dense.Basic2DMatrix;
 import org.la4j.vector.Vector;
 
 public class SensorRobot extends ProbabilisticReasoningAgent{
 
-	//the set of robot moves
-	private static int[][] MOVES = {{1,0},{0,1},{-1,0},{0,-1}};
-	
 	//the set of possible colors
-	private final char[] COLORS = {'r', 'g', 'b', 'y'};
+	private static final char[] COLORS = {'r', 'g', 'b', 'y'};
 	
-	//the max numbers of neighbors per location
-	private final double NUM_NEIGHBORS = 4;
+	//written in place of a color when the sensor gave no reading
+	public static final char MISSING_COLOR = '?';
 	
 	//the sensor error rate
 	private double error_rate;
 	
-	private Maze maze; //the robot knows the layout of the maze
+	//the squares whose sensor errs in its own way, their confusion matrices [true color][reading] by location
+	private final HashMap<Integer, double[][]> squareConfusion = new HashMap<Integer, double[][]>();
+	
+	//the moves the robot makes and the chance of trying each (see GridMotion)
+	private final int[][] moves;
+	private final double[] moveProbabilities;
+	
+	private Maze maze; //the robot knows the layout of the maze, a copy of its own so edits don't reach other robots
 	
 	public int[] variables; //the list of variables and their locations in the maze
+	private int[] variableAt; //the variable index of every location in the maze, -1 for walls
 	
 	//construct the HMM based off the maze
+	//the robot keeps its own copy of the maze, setWall(), setFloor() and setColor() change that copy (see getMaze())
 	public SensorRobot(Maze m){
+		this(m, StateOrdering.ROW_MAJOR);
+	}
+	
+	//construct the HMM with the variables numbered in the given order (see StateOrdering)
+	public SensorRobot(Maze m, String ordering){
+		this(m, ordering, GridMotion.FOUR_CONNECTED, GridMotion.uniform(GridMotion.FOUR_CONNECTED));
+	}
+	
+	//construct the HMM for a robot with its own set of moves, such as GridMotion.EIGHT_CONNECTED, or wheels that
+	//drift one way
+	//parameters: Maze m, String ordering (see StateOrdering), int[][] moves {dx, dy} pairs, double[] moveProbabilities
+	//the chance of trying each move, whatever is left over the robot stays put
+	public SensorRobot(Maze m, String ordering, int[][] moves, double[] moveProbabilities){
 		
-		maze = m;
+		maze = m.copy();
 		
 		error_rate = .12;
 		
+		this.moves = moves;
+		this.moveProbabilities = moveProbabilities;
+		
 		//Construct the models from the maze
-		setVariables();
-		setT(transitionModel());
-		setO(observationModel());
+		setVariables(ordering);
 		setState(variables.length);
+		setModel(motionModel(), sensorModel(), uniformPrior());
 	}
 	
 	//set the rate of sensor error
@@ -57,173 +77,214 @@ public class SensorRobot extends ProbabilisticReasoningAgent{
 		error_rate = e;
 	}
 
-	//create the transition model from an ascii representation of the maze
-	//Each entry is: Tij = P(Xt = j | Xt-1 = i)
-	//
-	//SxS where S is the number of variables
-	//   X1        X2        X3
-	//X1[P(x1|x1)][P(x1|x2)][P(x1|x2)]...
-	//
-	//
-	//X2[P(x2|x1)][P(x2|x2)][P(x1|x2)]...
-	//
-	//
-	//X3[P(x3|x1)][P(x3|x2)][P(x1|x2)]...
-	//
-	//
-	//X4[P(x4|x1)][P(x4|x2)][P(x1|x2)]...
-	//...
-	private Matrix transitionModel(){
-		
-		//Key = set of locations Value = set of neighbors
-		Hashtable<Integer, HashSet<Integer>> topography = getTopography();
-	
-		//size is number_of_variables x number_of_variables
-		//i = Xt-1, j = Xt
-		double[][] transition_probabilities = new double[variables.length][];
+	//the transition model over the current variables
+	//Each entry is: Tij = P(Xt = i | Xt-1 = j)
+	//a location can only be reached from itself and the squares one move away, every square the same way,
+	//so the model runs it as a stencil
+	private GridMotion motionModel(){
+		return new GridMotion(maze, variables, variableAt, moves, moveProbabilities);
+	}
 	
-		//get P(X_t|X_t-1) for every variable pair
-		int i=0;
-		for (int variable: variables){
-			transition_probabilities[i] = new double[variables.length];
-			
-			int j=0;
-			for (int pastVariable: variables){
-				
-				//get P(X_t|X_t-1)
-				//put it in the matrix
-				transition_probabilities[i][j] = getTransitionProbability(pastVariable, variable, topography);
-				j++;
-			}
-			i++;
+	//the observation model over the current variables
+	//a reading only depends on the color of the square, so the model looks it up through the color of each variable,
+	//unless some squares have their own confusion matrix
+	private EmissionModel sensorModel(){
+		ColorSensor colors = new ColorSensor(maze, variables, COLORS, ColorSensor.uniformError(COLORS.length, error_rate));
+		if (squareConfusion.isEmpty()){
+			return colors;
 		}
-		return new Basic2DMatrix(transition_probabilities);
+		return new SquareConfusionSensor(colors, variables, squareConfusion);
 	}
 	
-	//build the observation model
-	//a list of matrices
-	//each matrix contains the probabilities that a state would emit the given observation variable
-	//the matrices are diagonal so that we can do matrix multiplication with the transition model
-	//SxS where S is the number of variables
-	//   X1  X2  X3  X4
-	// X1[p1][0 ][0 ][0 ]
-	// X2[0 ][p2][0 ][0 ]
-	// X3[0 ][0 ][p3][0 ]
-	// X4[0 ][0 ][0 ][p4]
-	private Matrix[] observationModel(){
-		Matrix[] obs_mod = new Matrix[COLORS.length];
-		
-		
-		int index=0;
-		for (char color : COLORS){
-			double[][] obs_matrix = new double[variables.length][];
-			int i=0;
-			for (int variable:variables){
-				
-				obs_matrix[i] = new double[variables.length]; //create an array full of 0s
-				
-				//if its a true reading
-				if (maze.getChar(variable) == color){
-					obs_matrix[i][i] = 1 - error_rate;
-				}
-				
-				//if its an error
-				else{
-					obs_matrix[i][i] = error_rate/(COLORS.length-1);
-				}
-				i++;
-				
+	//Give a square a sensor that errs in its own way, or null to go back to the error rate
+	//only that square's emissions are rebuilt, though the first matrix turns the whole sensor model dense
+	//parameters: int x, int y the square, double[][] confusion P(reading | true color) as [true color][reading]
+	public synchronized void setSquareConfusion(int x, int y, double[][] confusion){
+		int location = checkSquare(x, y);
+		if (confusion == null){
+			squareConfusion.remove(location);
+		}
+		else{
+			SquareConfusionSensor.checkConfusion(location, confusion, COLORS.length);
+			double[][] copy = new double[confusion.length][];
+			for (int c=0; c<confusion.length; c++){
+				copy[c] = confusion[c].clone();
 			}
-			obs_mod[index] = new Basic2DMatrix(obs_matrix);
-			index++;
+			squareConfusion.put(location, copy);
 		}
-		return obs_mod;
+		int i = variableAt[location];
+		patchModel(variables.length, i < 0 ? new int[0] : new int[]{i});
+	}
+	
+	//at time 0 every variable is equally likely
+	private double[] uniformPrior(){
+		double[] prior = new double[variables.length];
+		Arrays.fill(prior, 1/((double) variables.length));
+		return prior;
 	}
 
 	//Set the variables as all and only legal locations in the maze
 	//by reducing the variables to only legal locations, the matrix size,
 	//and therefore runtime of the dynamical programming algorithms is reduced
-	private void setVariables(){
-		int number_of_variables = maze.legalCoutn();
+	//the variables are numbered in the given order, which decides where each location sits in every belief vector
+	private void setVariables(String ordering){
+		variables = StateOrdering.order(maze, ordering);
 
-		variables = new int[number_of_variables];
-
-		int i =0;
-		for(int location=0; location< maze.size(); location++){
-			if (maze.isLegal(location)){
-				variables[i] = location;
-				i++;
-			}
+		variableAt = new int[maze.size()];
+		Arrays.fill(variableAt, -1);
+		for (int i=0; i<variables.length; i++){
+			variableAt[variables[i]] = i;
+		}
+	}
+	
+	//Change the color of a floor square while the robot is running
+	//only that square's emissions are rebuilt, the variables and belief states keep their indices
+	//parameters: int x, int y the square, char color its new color
+	public synchronized void setColor(int x, int y, char color){
+		int i = variableAt[checkSquare(x, y)];
+		if (i < 0){
+			throw new IllegalArgumentException("(" + x + ", " + y + ") is a wall, use setFloor");
 		}
+		checkColor(color);
+		maze.setChar(x, y, color);
+		patchModel(variables.length, new int[]{i});
 	}
 	
-	//get the topography of the maze world
-	private Hashtable<Integer, HashSet<Integer>> getTopography(){
-		//Key = set of locations Value = set of neighbors
-		Hashtable<Integer, HashSet<Integer>> topography = new Hashtable<Integer, HashSet<Integer>>();
+	//Turn a square into a wall while the robot is running
+	//
+	//the square's variable is removed by moving the last variable into its place, so only the square, the moved square
+	//and the squares one move from them have their rows rebuilt. The robot can't be inside a wall, so the square's probability is
+	//dropped from the belief state and the rest renormalized
+	//
+	//returns the belief state over the new variables, or null if belief is null
+	//parameters: int x, int y the square, double[] belief the current belief state (or null)
+	public synchronized double[] setWall(int x, int y, double[] belief){
+		int location = checkSquare(x, y);
+		int removed = variableAt[location];
+		if (removed < 0){
+			return belief;
+		}
+		int last = variables.length - 1;
+		int moved = variables[last];
+		maze.setChar(x, y, Maze.WALL);
+		
+		//move the last variable into the hole
+		variables[removed] = moved;
+		variableAt[moved] = removed;
+		variableAt[location] = -1;
+		variables = Arrays.copyOf(variables, last);
 		
-		//create a representation of the topography of the maze
-		for (int location=0 ; location<maze.size(); location++){
-			topography.put(location, getNeighbors(location));
+		HashSet<Integer> rows = new HashSet<Integer>();
+		GridMotion motion = motionModel();
+		for (int affected: motion.affected(location)){
+			rows.add(variableAt[affected]);
 		}
-
-		return topography;
+		if (removed != last){
+			rows.add(removed);
+			for (int affected: motion.affected(moved)){
+				rows.add(variableAt[affected]);
+			}
+		}
+		patchModel(last, toArray(rows));
+		
+		if (belief == null){
+			return null;
+		}
+		double[] remapped = Arrays.copyOf(belief, last);
+		if (removed != last){
+			remapped[removed] = belief[last];
+		}
+		normalizeBelief(remapped);
+		return remapped;
 	}
 	
-	//get the neighboring states
-	//remaining in the same location is not overtly stored
-	//there will always be 4 covert paths, we only store paths to other location
-	private HashSet<Integer> getNeighbors(int i){
-		HashSet<Integer> neighbors = new HashSet<Integer>();
-		int x = maze.width;
+	//Turn a wall into a floor square of the given color while the robot is running
+	//
+	//the square gets a new variable at the end, so only it and the squares one move from it have their rows rebuilt.
+	//the robot wasn't on the square, so it starts with probability 0
+	//
+	//returns the belief state over the new variables, or null if belief is null
+	//parameters: int x, int y the square, char color its color, double[] belief the current belief state (or null)
+	public synchronized double[] setFloor(int x, int y, char color, double[] belief){
+		int location = checkSquare(x, y);
+		if (variableAt[location] >= 0){
+			setColor(x, y, color);
+			return belief;
+		}
+		checkColor(color);
+		maze.setChar(x, y, color);
+		
+		int added = variables.length;
+		variables = Arrays.copyOf(variables, added + 1);
+		variables[added] = location;
+		variableAt[location] = added;
 		
-		//east neighbor
-		int loc = i + 1;
-		if (i/x == loc/x && maze.isLegal(loc)){ //if there is an east neighbor
-			neighbors.add(loc);
+		HashSet<Integer> rows = new HashSet<Integer>();
+		rows.add(added);
+		for (int affected: motionModel().affected(location)){
+			rows.add(variableAt[affected]);
 		}
-
-		//north neighbor
-		loc = i + (1*x);
-		if (maze.isLegal(loc)){ //if there is a north neighbor
-			neighbors.add(loc);
+		patchModel(added + 1, toArray(rows));
+		
+		return belief == null ? null : Arrays.copyOf(belief, added + 1);
+	}
+	
+	//returns the variable of a square, -1 for a wall
+	public synchronized int getVariable(int x, int y){
+		return variableAt[checkSquare(x, y)];
+	}
+	
+	private void checkColor(char color){
+		if (getCharInt(color) >= COLORS.length){
+			throw new IllegalArgumentException("unknown color '" + color + "'");
 		}
-
-		//west neighbor
-		loc = i - 1;
-		if (i/x == loc/x && maze.isLegal(loc)){
-			neighbors.add(loc);
+	}
+	
+	//returns the location of a square, if it's on the map
+	private int checkSquare(int x, int y){
+		if (x < 0 || x >= maze.width || y < 0 || y >= maze.height){
+			throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is not in the maze");
 		}
-
-		//south neighbor
-		loc = i - (1*x);
-		if (maze.isLegal(loc)){
-			neighbors.add(loc);
+		return x + y*maze.width;
+	}
+	
+	//rebuild the given rows of the model over the current variables, every other row is copied from the old model
+	private void patchModel(int numVariables, int[] rows){
+		if (numVariables != getState().get(0).length()){
+			setState(numVariables);
 		}
-
-		return neighbors;
+		setModel(getModel().patch(numVariables, rows, motionModel(), sensorModel(), uniformPrior()));
 	}
-
-	//get the probability of transitioning from state v0 to state v1
-	private double getTransitionProbability(int v0, int v1, Hashtable<Integer, HashSet<Integer>> topography){
-		//if the same location, get the P() of staying still
-		if (v1 == v0){
-			//probability of a transition * number of self pointing paths
-			return (1/NUM_NEIGHBORS)*(NUM_NEIGHBORS - topography.get(v0).size());
+	
+	private static int[] toArray(HashSet<Integer> set){
+		int[] array = new int[set.size()];
+		int i = 0;
+		for (int value: set){
+			array[i++] = value;
 		}
-
-		//if v0 is a neighbor of v1, then get the probability
-		if (topography.get(v0).contains(v1)){
-			return 1/NUM_NEIGHBORS;
+		return array;
+	}
+	
+	//scale a belief state to sum to 1, a belief state with nothing left in it becomes uniform
+	private static void normalizeBelief(double[] belief){
+		double sum = 0;
+		for (double p: belief){
+			sum += p;
+		}
+		if (sum > 0){
+			for (int i=0; i<belief.length; i++){
+				belief[i] /= sum;
+			}
+		}
+		else{
+			Arrays.fill(belief, 1/((double) belief.length));
 		}
-
-		//if there is no possible way to transition from v0 to v1, then P() = 0
-		return 0;
 	}
 	
 	//Generate a random set of moves -- a list of coordinates
 	public int[][] generateRandomMoves(int num){
 		Random random = new Random();
+		GridMotion motion = motionModel();
 	
 		int[][] path = new int[num][];
 		
@@ -231,15 +292,9 @@ public class SensorRobot extends ProbabilisticReasoningAgent{
 		path[0] = new int[]{var%maze.width, var/maze.width};
 	
 		for (int i=1; i< num; i++){
-			int[] move = MOVES[random.nextInt(MOVES.length)];
-			int newx = path[i-1][0] + move[0];
-			int newy = path[i-1][1] + move[1];
-			if(maze.isLegal(newx, newy)){
-				path[i] = new int[]{newx, newy};
-			}
-			else{
-				path[i] = path[i-1];
-			}
+			int location = path[i-1][0] + path[i-1][1]*maze.width;
+			int next = motion.step(location, random.nextDouble());
+			path[i] = next == location ? path[i-1] : new int[]{next%maze.width, next/maze.width};
 		}
 		return path;
 	}
@@ -269,16 +324,24 @@ public class SensorRobot extends ProbabilisticReasoningAgent{
 			char c = maze.getChar(location[0], location[1]);
 			
 			double error = random.nextDouble();
-			System.out.println(error + " " + error_rate);
-			System.out.println(error < error_rate);
 			//get the correct observation
 			int charval = getCharInt(c);
 			
-			//Generate a random error
-			if (error < error_rate){
+			//a square with its own sensor draws the reading from its confusion matrix
+			double[][] own = squareConfusion.get(location[0] + location[1]*maze.width);
+			if (own != null){
+				double[] row = own[charval];
+				int reading = 0;
+				for (double u = random.nextDouble() - row[0]; u >= 0 && reading < row.length - 1; u -= row[reading]){
+					reading++;
+				}
+				observations[i] = reading;
+			}
+			//Generate a random error, any of the other colors equally likely (see ColorSensor.uniformError())
+			else if (error < error_rate){
 				int errorchar = charval;
 				while (errorchar == charval){
-					errorchar = random.nextInt(COLORS.length-1);
+					errorchar = random.nextInt(COLORS.length);
 				}
 				observations[i] = errorchar;
 			}
@@ -293,8 +356,73 @@ public class SensorRobot extends ProbabilisticReasoningAgent{
 
 	}
 	
+	//returns the observation value of a color reading, MISSING_COLOR for a step without one
+	public int getObservation(char color){
+		return observationOf(color);
+	}
+	
+	private static int observationOf(char color){
+		if (color == MISSING_COLOR){
+			return HiddenMarkovModel.MISSING;
+		}
+		int observation = getCharInt(color);
+		if (observation >= COLORS.length){
+			throw new IllegalArgumentException("unknown color '" + color + "'");
+		}
+		return observation;
+	}
+	
+	//parse an observation log: color readings or observation values, separated by whitespace or commas.
+	//a step without a reading is written as ? (or the value -1)
+	public int[] parseObservations(String text){
+		return parseColors(text);
+	}
+	
+	//parse an observation log without a robot, every robot reads colors the same way (see parseObservations())
+	public static int[] parseColors(String text){
+		String trimmed = text.trim();
+		if (trimmed.length() == 0){
+			return new int[0];
+		}
+
+		String[] tokens = trimmed.split("[\\s,;]+");
+		int[] obs = new int[tokens.length];
+		for (int i=0; i<tokens.length; i++){
+			String token = tokens[i];
+			if (token.length() == 1 && (Character.isLetter(token.charAt(0)) || token.charAt(0) == MISSING_COLOR)){
+				obs[i] = observationOf(token.charAt(0));
+			}
+			else{
+				obs[i] = Integer.parseInt(token);
+				if ((obs[i] < 0 && obs[i] != HiddenMarkovModel.MISSING) || obs[i] >= COLORS.length){
+					throw new IllegalArgumentException("observation out of range: " + token);
+				}
+			}
+		}
+		return obs;
+	}
+	
+	//returns the color of an observation value
+	public char getColor(int observation){
+		if (observation == HiddenMarkovModel.MISSING){
+			return MISSING_COLOR;
+		}
+		return COLORS[observation];
+	}
+	
+	//returns the number of possible observation values
+	public int numObservations(){
+		return COLORS.length;
+	}
+	
+	//returns the layout of the maze the robot is in, with any edits made through setWall(), setFloor() and setColor()
+	//this is the robot's own copy, not the Maze it was built on
+	public Maze getMaze(){
+		return maze;
+	}
+	
 	//returns the integer representation of the character
-	private int getCharInt(char c){
+	private static int getCharInt(char c){
 		int i=0;
 		for (char color:COLORS){
 			if (c==color){
@@ -305,69 +433,25 @@ public class SensorRobot extends ProbabilisticReasoningAgent{
 		return i;
 	}
 	
+	//draw every belief state in getState() as a grid over the maze
 	public String toString(){
-		String s = "";
-
-		ArrayList<Vector> state = getState();
-		int i=0;
-		for (Vector time_slice: state){
-			s += "=========================\n";
-			s += "          t:" + Integer.toString(i) + "           \n";
-			s += "=========================\n";
-			
-			int j=0;
-			for (int y = 0; y < maze.height; y++) {
-				for (int x = 0; x < maze.width; x++) {
-					s += time_slice.get(j);
-					j++;
-				}
-				s += "\n";
-			}
-			i++;
-			
-			
-		}
-		
-		return s;
+		return toString(getState(), null);
 	}
 	
+	//draw a sequence of belief states as grids over the maze, labeled with the observation at each time
+	//the text is written through a BeliefExporter so building it is linear in the size of the output
 	public String toString(ArrayList<Vector> state, int[] obs){
-		String s = "";
-
-		int i=0;
-		for (Vector time_slice: state){
-			s += "===============================================================================\n";
-			if (i > 0){
-				s += "                           t:" + Integer.toString(i) + "   observation:" +  COLORS[obs[i-1]] + "          \n";
-			}
-			else{
-				s += "                           t:" + Integer.toString(i) + "   observation:null        \n";
-
-			}
-			s += "===============================================================================\n";
-			int j=0;
-			for (int y = 0; y < maze.height; y++) {
-				s += "| ";
-				for (int x = 0; x < maze.width; x++) {
-					s += Double.toString(time_slice.get(j));
-					s += "\t| ";
-					j++;
-
-				}
-				s += "\n|";
-						
-				for (int x= 0; x < maze.width; x++){
-					s+= "=======================|";
-				}
-						
-				s+= "\n";
-			}
-			i++;
-			
-			
+		StringWriter out = new StringWriter();
+		try{
+			BeliefExporter exporter = new BeliefExporter(this, BeliefExporter.GRID, out);
+			exporter.writeBeliefs("", BeliefExporter.FILTERED, obs, state);
+			exporter.flush();
 		}
-		
-		return s;
+		catch (IOException e){
+			//a StringWriter never throws
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
 	}
 	
 	public static void main(String[] args) throws IOException{
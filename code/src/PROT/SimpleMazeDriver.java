@@ -10,6 +10,11 @@ package PROT;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.la4j.vector.Vector;
 
@@ -17,12 +22,12 @@ import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.animation.TranslateTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.layout.StackPane;
-import javafx.scene.shape.Rectangle;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
@@ -32,33 +37,99 @@ public class SimpleMazeDriver extends Application {
 	
 	// instance variables used for graphical display
 	private static final int PIXELS_PER_SQUARE = 50;
+	
+	// mazes bigger than this are drawn onto a canvas instead of a node per square,
+	//  and squares shrink so the maze fits in the window
+	private static final int CANVAS_CELLS = 400;
+	private static final int MAX_MAZE_PIXELS = 800;
+	
+	private int pixelsPerSquare;
 	MazeView mazeView;
 	List<AnimationPath> animationPathList;
 	
+	// runs inference off the JavaFX application thread
+	private ExecutorService inference;
+	
 	// some basic initialization of the graphics; needs to be done before 
 	//  runSearches, so that the mazeView is available
 	private void initMazeView() {
-		maze = Maze.readFromFile("4x4WallMaze.maz");
+		List<String> args = getParameters().getUnnamed();
+		maze = Maze.readFromFile(args.isEmpty() ? "4x4WallMaze.maz" : args.get(0));
 		
 		animationPathList = new ArrayList<AnimationPath>();
 		// build the board
-		mazeView = new MazeView(maze, PIXELS_PER_SQUARE);
+		pixelsPerSquare = Math.max(1, Math.min(PIXELS_PER_SQUARE, MAX_MAZE_PIXELS/Math.max(maze.width, maze.height)));
+		mazeView = new MazeView(maze, pixelsPerSquare, maze.size() > CANVAS_CELLS);
 		
 	}
 	
 	// assumes maze and mazeView instance variables are already available
+	//
+	// inference runs on a background thread so the window stays responsive. Filtered
+	//  beliefs are drawn as they are computed; once smoothing finishes the robot's path is animated
 	private void runSearches() {
 		
-		SensorRobot robot = new SensorRobot(maze);
+		inference = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "inference");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		inference.execute(new Runnable() {
+			@Override
+			public void run() {
+				final SensorRobot robot = new SensorRobot(maze);
 
-		int[][] robotPath = robot.generateRandomMoves(20);
-		int[] obs = robot.generateObservations(robotPath, true);
+				final int[][] robotPath = robot.generateRandomMoves(20);
+				int[] obs = robot.generateObservations(robotPath, true);
 
-		ArrayList<Vector>states = robot.smoothing(obs);
-		
-		animationPathList.add(new AnimationPath(mazeView, robotPath, states));
+				robot.filter(obs, new BeliefPublisher(robot.variables));
+				
+				final ArrayList<Vector> states = robot.smoothing(obs);
+				
+				Platform.runLater(new Runnable() {
+					@Override
+					public void run() {
+						animationPathList.add(new AnimationPath(mazeView, robotPath, states, robot.variables));
+					}
+				});
+			}
+		});
 
 	}
+	
+	// hands belief states computed on the inference thread to the JavaFX application thread.
+	//  at most one redraw is queued at a time; if the inference thread gets ahead of the
+	//  display, intermediate beliefs are skipped and only the latest one is drawn
+	private class BeliefPublisher implements BeliefListener {
+		private final int[] variables;
+		private final AtomicReference<Vector> latest = new AtomicReference<Vector>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		
+		public BeliefPublisher(int[] vars) {
+			variables = vars;
+		}
+		
+		@Override
+		public void beliefUpdated(int t, Vector belief) {
+			latest.set(belief);
+			if (scheduled.compareAndSet(false, true)) {
+				Platform.runLater(new Runnable() {
+					@Override
+					public void run() {
+						scheduled.set(false);
+						Vector belief = latest.getAndSet(null);
+						if (belief != null) {
+							mazeView.updateBeliefs(belief, variables);
+						}
+					}
+				});
+			}
+		}
+	}
 
 
 	public static void main(String[] args) {
@@ -88,6 +159,13 @@ public class SimpleMazeDriver extends Application {
 
 	}
 
+	@Override
+	public void stop() {
+		if (inference != null) {
+			inference.shutdownNow();
+		}
+	}
+
 	// every frame, this method gets called and tries to do the next move
 	//  for each animationPath.
 	private class GameHandler implements EventHandler<ActionEvent> {
@@ -110,7 +188,7 @@ public class SimpleMazeDriver extends Application {
 	private class AnimationPath {
 		private Node piece;
 		ArrayList<Vector> probs;
-		ArrayList<Rectangle> beliefPieces;
+		private int[] variables; // the maze location of each entry of a belief state
 		private int[][] truePath;
 		private int currentMove = 0;
 	
@@ -119,23 +197,16 @@ public class SimpleMazeDriver extends Application {
 	
 		boolean animationDone = true;
 	
-		public AnimationPath(MazeView mazeView, int[][] path, ArrayList<Vector> st) {
+		public AnimationPath(MazeView mazeView, int[][] path, ArrayList<Vector> st, int[] vars) {
 			probs = st;
-			beliefPieces = new ArrayList<Rectangle>();
+			variables = vars;
 			
 			truePath = path;
+			mazeView.updateBeliefs(st.get(0), variables);
 			piece = mazeView.addPiece(truePath[0][0], truePath[0][1]);
 			lastX = truePath[0][0];
 			lastY = truePath[0][1];
 			
-			int j=0;
-			for (int i=0; i<maze.size(); i++){
-				if (maze.isLegal(i)){
-					beliefPieces.add(mazeView.addState(i%maze.width, i/maze.width, st.get(0).get(j)));
-					j++;
-				}
-			}
-			
 		}
 
 		// try to do the next step of the animation. Do nothing if
@@ -153,12 +224,7 @@ public class SimpleMazeDriver extends Application {
 				lastY = truePath[currentMove][1];
 				
 				//update Probability bars
-				Vector timeSlice = probs.get(currentMove + 1);
-				int i=0;
-				for (Rectangle beliefPiece:beliefPieces){
-					mazeView.updateProbability(beliefPiece, timeSlice.get(i));
-					i++;
-				}
+				mazeView.updateBeliefs(probs.get(currentMove + 1), variables);
 				currentMove++;
 			}
 		
@@ -169,8 +235,8 @@ public class SimpleMazeDriver extends Application {
 			animationDone = false;
 			TranslateTransition tt = new TranslateTransition(
 					Duration.millis(300), n);
-			tt.setByX(PIXELS_PER_SQUARE * dx);
-			tt.setByY(-PIXELS_PER_SQUARE * dy);
+			tt.setByX(pixelsPerSquare * dx);
+			tt.setByY(-pixelsPerSquare * dy);
 			// set a callback to trigger when animation is finished
 			tt.setOnFinished(new AnimationFinished());
 
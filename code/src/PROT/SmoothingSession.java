@@ -0,0 +1,176 @@
+/**
+ * SmoothingSession keeps the smoothed belief states of a growing observation log up to date
+ *
+ * the session caches the normalized forward and backward messages. Appending observations extends the
+ * forward messages from the last cached one, so no old forward step is ever recomputed. The backward pass
+ * starts again at the new end of the log and walks back only until the new backward message matches the
+ * cached one (within the tolerance). Every earlier backward message, and so every earlier smoothed
+ * belief state, is a function of that message and the observations before it, so nothing earlier changes.
+ *
+ * because the robot's position mixes over time, new observations only move the beliefs of the last few steps
+ * noticeably, so an append costs time proportional to the new observations plus that window, not the whole log
+ */
+
+package PROT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SmoothingSession {
+
+	//largest change in a normalized backward message that still counts as unchanged
+	public static final double DEFAULT_TOLERANCE = 1e-12;
+
+	private final HiddenMarkovModel model;
+	private final double tolerance;
+	private final int numVariables;
+
+	private int[] obs = new int[16];
+	private int length = 0; //number of observations
+
+	//forward.get(t) is P(X_t|e_1:t), time 0 is the prior
+	private final ArrayList<double[]> forward = new ArrayList<double[]>();
+	//backward.get(t) is the normalized P(e_t+1:T|X_t), time 0 is not kept
+	private final ArrayList<double[]> backward = new ArrayList<double[]>();
+
+	private final double[] scratch;
+	private double logLikelihood = 0;
+
+	public SmoothingSession(HiddenMarkovModel model){
+		this(model, DEFAULT_TOLERANCE);
+	}
+
+	//parameters: double tolerance the largest change in a backward message that is treated as no change,
+	//0 recomputes the whole backward pass whenever anything changes
+	public SmoothingSession(HiddenMarkovModel model, double tolerance){
+		this(model, tolerance, null);
+	}
+
+	//parameters: double[] start the belief state at time 0 in place of the model's prior, such as a saved one,
+	//or null for the prior
+	public SmoothingSession(HiddenMarkovModel model, double tolerance, double[] start){
+		this.model = model;
+		this.tolerance = tolerance;
+		this.numVariables = model.numVariables();
+
+		double[] prior = new double[numVariables];
+		if (start != null){
+			if (start.length != numVariables){
+				throw new IllegalArgumentException("the model has " + numVariables + " variables, not " + start.length);
+			}
+			System.arraycopy(start, 0, prior, 0, numVariables);
+		}
+		else{
+			for (int i=0; i<numVariables; i++){
+				prior[i] = model.getPrior(i);
+			}
+		}
+		forward.add(prior);
+		backward.add(null);
+
+		scratch = new double[numVariables];
+	}
+
+	//Append observations to the log and bring the smoothed belief states up to date
+	//
+	//returns the earliest time whose smoothed belief state changed
+	//parameters: int[] newObs the observations that follow the ones already in the session
+	public int append(int[] newObs){
+		int oldLength = length;
+		if (newObs.length == 0){
+			return oldLength + 1;
+		}
+
+		//extend the forward messages
+		if (length + newObs.length > obs.length){
+			obs = Arrays.copyOf(obs, Math.max(2*obs.length, length + newObs.length));
+		}
+		for (int o: newObs){
+			double[] next = new double[numVariables];
+			logLikelihood += Math.log(model.filterStep(forward.get(length), o, next));
+			forward.add(next);
+			backward.add(null);
+			obs[length] = o;
+			length++;
+		}
+
+		//the backward message at the end of the log is all ones
+		double[] last = backward.get(length);
+		if (last == null){
+			last = new double[numVariables];
+			backward.set(length, last);
+		}
+		Arrays.fill(last, 1.0);
+
+		//walk back until the backward message stops changing
+		for (int t=length-1; t>0; t--){
+			model.backwardStep(backward.get(t+1), obs[t], scratch);
+
+			double[] cached = backward.get(t);
+			if (cached == null){
+				backward.set(t, scratch.clone());
+				continue;
+			}
+			if (t < oldLength && maxDifference(cached, scratch) <= tolerance){
+				return t + 1;
+			}
+			System.arraycopy(scratch, 0, cached, 0, numVariables);
+		}
+		return 1;
+	}
+
+	//append a single observation
+	public int append(int observation){
+		return append(new int[]{observation});
+	}
+
+	//number of observations in the session
+	public int length(){
+		return length;
+	}
+
+	//log P(e_1:T) of the whole log
+	public double logLikelihood(){
+		return logLikelihood;
+	}
+
+	//Copy the smoothed belief state P(X_t|e_1:T) into a caller supplied array, time 0 is the prior
+	//returns the array
+	public double[] getPosterior(int t, double[] into){
+		if (t < 0 || t > length){
+			throw new IndexOutOfBoundsException("time " + t + " of " + length);
+		}
+		double[] f = forward.get(t);
+		if (t == 0){
+			System.arraycopy(f, 0, into, 0, numVariables);
+			return into;
+		}
+		double[] b = backward.get(t);
+		for (int i=0; i<numVariables; i++){
+			into[i] = f[i]*b[i];
+		}
+		HiddenMarkovModel.normalize(into);
+		return into;
+	}
+
+	public double[] getPosterior(int t){
+		return getPosterior(t, new double[numVariables]);
+	}
+
+	//the filtered belief state P(X_t|e_1:t)
+	public double[] getFiltered(int t, double[] into){
+		if (t < 0 || t > length){
+			throw new IndexOutOfBoundsException("time " + t + " of " + length);
+		}
+		System.arraycopy(forward.get(t), 0, into, 0, numVariables);
+		return into;
+	}
+
+	private static double maxDifference(double[] a, double[] b){
+		double max = 0;
+		for (int i=0; i<a.length; i++){
+			max = Math.max(max, Math.abs(a[i] - b[i]));
+		}
+		return max;
+	}
+}
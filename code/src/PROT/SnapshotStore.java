@@ -0,0 +1,600 @@
+/**
+ * SnapshotStore saves the belief states of tracking sessions to a memory mapped, append-only file, so a worker
+ * that restarts can pick every robot up where it left off instead of re-localizing from the uniform prior
+ *
+ * each record holds a session id, the fingerprint of the model the belief state belongs to (see
+ * HiddenMarkovModel.fingerprint()), the time index, the log likelihood so far, and the belief vector.
+ * appending is a copy into the mapped file, with no system call, so sessions can be checkpointed often.
+ * once it's copied, a record survives the process dying; force() also makes it survive the machine going down.
+ *
+ * records are never rewritten. Every record points back to the same session's previous one, and ends with a
+ * checksum, so a record torn by a crash is passed over for the one before it. Opening the file reads only the
+ * record headers, and a session's latest state is read when it is asked for. compact() drops everything but the
+ * latest record of each open session
+ *
+ * compact() writes the kept records to a new file through a channel, never a mapping, and commits it by renaming
+ * it to filename.compact. The committed file then replaces the store's file. Windows won't replace a file that is
+ * still mapped, and a mapping only goes when it is garbage collected, so if the rename fails the records are copied
+ * over the old ones instead. The file then keeps its length, but new records go over the old ones rather than
+ * after them. A compaction cut off by a crash is finished the next time the file is opened
+ *
+ * main() runs a check of the crash handling: a truncated file, a corrupted checksum and a compaction
+ *
+ * file layout, little endian: the header "PROTSNAP", int version, int 0, then records of
+ *   int mark, int flags, long session, long fingerprint, long time, double logLikelihood,
+ *   long previous record of the session (-1 for none), int numVariables, int 0, double[numVariables] belief, long checksum
+ * the rest of the file is zero
+ */
+
+package PROT;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+public class SnapshotStore {
+
+	//the file is grown and mapped this much at a time
+	public static final long DEFAULT_REGION_BYTES = 64L << 20;
+
+	private static final byte[] MAGIC = {'P', 'R', 'O', 'T', 'S', 'N', 'A', 'P'};
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_BYTES = 16;
+
+	private static final int MARK = 0x50414e53; //"SNAP"
+	private static final int RECORD_HEADER_BYTES = 56;
+
+	private static final int SMOOTHING = 1;
+	private static final int CLOSED = 2;
+
+	//the most a scan maps at once
+	private static final long SCAN_WINDOW_BYTES = 1L << 30;
+
+	private final File file;
+	private final long regionBytes;
+
+	private RandomAccessFile access;
+	private FileChannel channel;
+
+	//a read only mapping of the records, for reading them back
+	private MappedByteBuffer view;
+	private long viewStart;
+
+	//the part of the file being appended to
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long end; //where the next record goes
+
+	//the offset of each session's latest record
+	private final HashMap<Long, Long> latest = new HashMap<Long, Long>();
+	private long numRecords = 0;
+
+	//a saved belief state
+	public static class Snapshot {
+		public final long session;
+		public final long fingerprint; //of the model the belief state was computed with
+		public final long time; //observations seen when it was saved
+		public final double logLikelihood;
+		public final boolean smoothing; //whether the session kept its whole log
+		public final boolean closed; //the session was closed, belief is empty
+		public final double[] belief;
+
+		Snapshot(long session, long fingerprint, long time, double logLikelihood, boolean smoothing, boolean closed, double[] belief){
+			this.session = session;
+			this.fingerprint = fingerprint;
+			this.time = time;
+			this.logLikelihood = logLikelihood;
+			this.smoothing = smoothing;
+			this.closed = closed;
+			this.belief = belief;
+		}
+	}
+
+	//open a snapshot file, creating it if it doesn't exist
+	public SnapshotStore(String filename) throws IOException{
+		this(filename, DEFAULT_REGION_BYTES);
+	}
+
+	//parameters: long regionBytes how much the file grows at a time
+	public SnapshotStore(String filename, long regionBytes) throws IOException{
+		if (regionBytes < FILE_HEADER_BYTES || regionBytes > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("bad region size " + regionBytes);
+		}
+		this.file = new File(filename);
+		this.regionBytes = regionBytes;
+		open();
+	}
+
+	private void open() throws IOException{
+		//finish a compaction that was committed but not installed
+		File compacted = compactedFile();
+		if (compacted.exists()){
+			install(compacted, -1);
+		}
+
+		access = new RandomAccessFile(file, "rw");
+		try{
+			channel = access.getChannel();
+			if (channel.size() == 0){
+				end = FILE_HEADER_BYTES;
+				map(0, regionBytes);
+				region.put(MAGIC).putInt(VERSION).putInt(0);
+			}
+			else{
+				ByteBuffer header = read(0, FILE_HEADER_BYTES);
+				byte[] magic = new byte[MAGIC.length];
+				header.get(magic);
+				for (int b=0; b<MAGIC.length; b++){
+					if (magic[b] != MAGIC[b]){
+						throw new IOException(file + " is not a snapshot file");
+					}
+				}
+				int version = header.getInt();
+				if (version != VERSION){
+					throw new IOException(file + " is snapshot version " + version + ", not " + VERSION);
+				}
+				scan();
+				map(end, regionBytes);
+			}
+		}
+		catch (IOException e){
+			access.close();
+			throw e;
+		}
+	}
+
+	//read the record headers to find each session's latest record and the end of the records
+	private void scan() throws IOException{
+		long size = channel.size();
+		long position = FILE_HEADER_BYTES;
+		MappedByteBuffer window = null;
+		long windowStart = 0;
+		while (position + RECORD_HEADER_BYTES + 8 <= size){
+			if (window == null || position + RECORD_HEADER_BYTES > windowStart + window.capacity()){
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, SCAN_WINDOW_BYTES));
+				window.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			int at = (int) (position - windowStart);
+			int numVariables = window.getInt(at + 48);
+			if (window.getInt(at) != MARK || numVariables < 0 || position + recordBytes(numVariables) > size){
+				//the zeros after the last record, or a record cut off by a crash
+				break;
+			}
+			latest.put(window.getLong(at + 8), position);
+			numRecords++;
+			position += recordBytes(numVariables);
+		}
+		end = position;
+	}
+
+	//Save a session's belief state
+	//parameters: long session, long fingerprint of the session's model, long time observations seen so far,
+	//double logLikelihood, boolean smoothing whether the session keeps its whole log, double[] belief
+	public void append(long session, long fingerprint, long time, double logLikelihood, boolean smoothing, double[] belief) throws IOException{
+		append(session, fingerprint, time, logLikelihood, smoothing ? SMOOTHING : 0, belief);
+	}
+
+	//Record that a session was closed, so it isn't restored
+	public void appendClosed(long session) throws IOException{
+		append(session, 0, 0, 0, CLOSED, new double[0]);
+	}
+
+	private synchronized void append(long session, long fingerprint, long time, double logLikelihood, int flags, double[] belief) throws IOException{
+		if (channel == null){
+			throw new IOException("snapshot store is closed");
+		}
+		long length = recordBytes(belief.length);
+		if (length > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("a belief state of " + belief.length + " variables is too big for one record");
+		}
+		if (end + length > regionStart + region.capacity()){
+			map(end, Math.max(regionBytes, length));
+		}
+
+		Long previous = latest.get(session);
+		ByteBuffer record = region.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		record.position((int) (end - regionStart));
+		putRecord(record, session, fingerprint, time, logLikelihood, flags, previous == null ? -1 : previous, belief);
+
+		latest.put(session, end);
+		numRecords++;
+		end += length;
+	}
+
+	//Get a session's latest intact belief state
+	//
+	//returns the snapshot, or null if the session has none
+	public synchronized Snapshot latest(long session) throws IOException{
+		Long offset = latest.get(session);
+		long position = offset == null ? -1 : offset;
+		while (position >= FILE_HEADER_BYTES){
+			ByteBuffer record = view(position, RECORD_HEADER_BYTES);
+			int numVariables = record.getInt(48);
+			if (numVariables < 0 || position + recordBytes(numVariables) > end){
+				return null;
+			}
+			record = view(position, recordBytes(numVariables));
+
+			long checksum = checksum(record.getInt(4), record.getLong(8), record.getLong(16), record.getLong(24),
+					record.getLong(32), record.getLong(40), numVariables);
+			long[] bits = new long[numVariables];
+			record.position(RECORD_HEADER_BYTES);
+			record.asLongBuffer().get(bits);
+			double[] belief = new double[numVariables];
+			for (int i=0; i<numVariables; i++){
+				checksum = HiddenMarkovModel.hash(checksum, bits[i]);
+				belief[i] = Double.longBitsToDouble(bits[i]);
+			}
+
+			if (record.getInt(0) == MARK && record.getLong(8) == session && checksum == record.getLong(RECORD_HEADER_BYTES + 8*numVariables)){
+				int flags = record.getInt(4);
+				return new Snapshot(session, record.getLong(16), record.getLong(24), record.getDouble(32),
+						(flags & SMOOTHING) != 0, (flags & CLOSED) != 0, belief);
+			}
+			//torn, fall back to the record before it. Records only point back, so this ends
+			long previous = record.getLong(40);
+			position = previous < position ? previous : -1;
+		}
+		return null;
+	}
+
+	//Get the latest intact belief state of every session that wasn't closed
+	//returns the snapshots ordered by session id
+	public synchronized List<Snapshot> restore() throws IOException{
+		List<Snapshot> snapshots = new ArrayList<Snapshot>(latest.size());
+		for (Long session: latest.keySet()){
+			Snapshot snapshot = latest(session);
+			if (snapshot != null && !snapshot.closed){
+				snapshots.add(snapshot);
+			}
+		}
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			@Override
+			public int compare(Snapshot a, Snapshot b){
+				return a.session < b.session ? -1 : (a.session == b.session ? 0 : 1);
+			}
+		});
+		return snapshots;
+	}
+
+	//Rewrite the file with only the latest record of every session that wasn't closed
+	public synchronized void compact() throws IOException{
+		if (channel == null){
+			throw new IOException("snapshot store is closed");
+		}
+		List<Snapshot> kept = restore();
+
+		//written through a channel, so nothing maps the new file and it can be renamed on any system
+		File written = new File(file.getPath() + ".compact.tmp");
+		FileChannel out = FileChannel.open(written.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		try{
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC).putInt(VERSION).putInt(0);
+			header.flip();
+			write(out, header, 0);
+			long position = FILE_HEADER_BYTES;
+			for (Snapshot snapshot: kept){
+				ByteBuffer record = ByteBuffer.allocate((int) recordBytes(snapshot.belief.length)).order(ByteOrder.LITTLE_ENDIAN);
+				putRecord(record, snapshot.session, snapshot.fingerprint, snapshot.time, snapshot.logLikelihood,
+						snapshot.smoothing ? SMOOTHING : 0, -1, snapshot.belief);
+				record.flip();
+				position += write(out, record, position);
+			}
+			out.force(true);
+		}
+		finally{
+			out.close();
+		}
+		//the compaction is committed once the new file has this name, open() finishes it after a crash
+		Files.move(written.toPath(), compactedFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		long oldEnd = end;
+		close();
+		try{
+			install(compactedFile(), oldEnd);
+		}
+		finally{
+			//if installing failed the committed file is still there, and opening tries again
+			latest.clear();
+			numRecords = 0;
+			open();
+		}
+	}
+
+	//Replace the file with a committed compacted one
+	//parameters: long oldEnd the end of the records in the file, -1 if it isn't known
+	private void install(File compacted, long oldEnd) throws IOException{
+		try{
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		catch (IOException e){
+			//the file is still mapped (Windows), copy over it below
+		}
+
+		//copy with plain reads and writes, FileChannel.transferTo() may map the compacted file, which couldn't be deleted then
+		FileChannel in = FileChannel.open(compacted.toPath(), StandardOpenOption.READ);
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try{
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			long position = 0;
+			while (in.read(buffer, position) > 0 || buffer.position() > 0){
+				buffer.flip();
+				position += write(out, buffer, position);
+				buffer.clear();
+			}
+
+			//zero the old records after the copied ones, so a scan stops where the copy ends. A mapped file can't be
+			//truncated on Windows either
+			long stale = oldEnd < 0 ? out.size() : Math.min(oldEnd, out.size());
+			ByteBuffer zeros = ByteBuffer.allocate(buffer.capacity());
+			while (position < stale){
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), stale - position));
+				position += write(out, zeros, position);
+			}
+			out.force(true);
+		}
+		finally{
+			in.close();
+			out.close();
+		}
+		Files.delete(compacted.toPath());
+	}
+
+	private File compactedFile(){
+		return new File(file.getPath() + ".compact");
+	}
+
+	//Compact the file once it holds more than factor records for every session in it
+	//
+	//returns whether the file was compacted
+	public synchronized boolean compactIfLarger(double factor) throws IOException{
+		if (numRecords <= factor*Math.max(1, latest.size())){
+			return false;
+		}
+		compact();
+		return true;
+	}
+
+	//write the appended records through to the disk
+	public synchronized void force(){
+		if (region != null){
+			region.force();
+		}
+	}
+
+	//force the records to disk and release the file. The mapped pages go when they're garbage collected
+	public synchronized void close() throws IOException{
+		if (channel == null){
+			return;
+		}
+		force();
+		access.close();
+		access = null;
+		channel = null;
+		region = null;
+		view = null;
+	}
+
+	//number of sessions with a record
+	public synchronized int numSessions(){
+		return latest.size();
+	}
+
+	//number of records in the file
+	public synchronized long numRecords(){
+		return numRecords;
+	}
+
+	//bytes of records in the file, the file itself is larger by the unused end of its last region
+	public synchronized long size(){
+		return end;
+	}
+
+	//the checksum of a record's header, the belief vector is hashed on after it
+	private static long checksum(int flags, long session, long fingerprint, long time, long logLikelihoodBits, long previous, int numVariables){
+		long checksum = HiddenMarkovModel.hash(0, MARK);
+		checksum = HiddenMarkovModel.hash(checksum, flags);
+		checksum = HiddenMarkovModel.hash(checksum, session);
+		checksum = HiddenMarkovModel.hash(checksum, fingerprint);
+		checksum = HiddenMarkovModel.hash(checksum, time);
+		checksum = HiddenMarkovModel.hash(checksum, logLikelihoodBits);
+		checksum = HiddenMarkovModel.hash(checksum, previous);
+		return HiddenMarkovModel.hash(checksum, numVariables);
+	}
+
+	//write a record at the buffer's position, and leave the position after it
+	private static void putRecord(ByteBuffer record, long session, long fingerprint, long time, double logLikelihood, int flags, long back, double[] belief){
+		record.putInt(MARK).putInt(flags).putLong(session).putLong(fingerprint).putLong(time).putDouble(logLikelihood)
+				.putLong(back).putInt(belief.length).putInt(0);
+		record.asDoubleBuffer().put(belief);
+		record.position(record.position() + 8*belief.length);
+
+		long checksum = checksum(flags, session, fingerprint, time, Double.doubleToLongBits(logLikelihood), back, belief.length);
+		for (double p: belief){
+			checksum = HiddenMarkovModel.hash(checksum, Double.doubleToLongBits(p));
+		}
+		record.putLong(checksum);
+	}
+
+	//write all of a buffer at a position in a file
+	//returns the number of bytes written
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()){
+			channel.write(buffer, position + length - buffer.remaining());
+		}
+		return length;
+	}
+
+	private static long recordBytes(int numVariables){
+		return RECORD_HEADER_BYTES + 8L*numVariables + 8;
+	}
+
+	//map the region records are appended to, growing the file to cover it
+	private void map(long start, long size) throws IOException{
+		if (region != null){
+			region.force();
+		}
+		region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		regionStart = start;
+	}
+
+	//returns part of the records, read through a mapping that is only replaced when the part isn't in it
+	private ByteBuffer view(long position, long length) throws IOException{
+		if (view == null || position < viewStart || position + length > viewStart + view.capacity()){
+			viewStart = position;
+			view = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(length, Math.min(end - position, SCAN_WINDOW_BYTES)));
+		}
+		ByteBuffer record = view.duplicate();
+		record.position((int) (position - viewStart));
+		record.limit((int) (position - viewStart + length));
+		return record.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	//read part of the file onto the heap
+	private ByteBuffer read(long position, long length) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()){
+			if (channel.read(buffer, position + buffer.position()) < 0){
+				throw new IOException("snapshot record runs past the end of " + file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	//Check that a store recovers from a crash: a file cut off in the middle of a record, a record whose checksum
+	//doesn't match, stray bytes after the last record, and a compaction cut off before it was installed
+	//
+	//usage: SnapshotStore check [directory for the scratch files]
+	public static void main(String[] args) throws IOException{
+		if (args.length < 1 || !args[0].equals("check")){
+			System.err.println("usage: SnapshotStore check [directory for the scratch files]");
+			System.exit(2);
+		}
+		File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+		File original = File.createTempFile("snapshots", ".snap", directory);
+		Files.delete(original.toPath());
+		ArrayList<File> scratch = new ArrayList<File>();
+		scratch.add(original);
+		int failures = 0;
+		try{
+			//session 1 is saved three times, session 2 once
+			SnapshotStore store = new SnapshotStore(original.getPath(), 4096);
+			store.append(1, 7, 1, -1, false, new double[]{.5, .25, .25});
+			store.append(2, 7, 1, -1, true, new double[]{.2, .2, .6});
+			store.append(1, 7, 2, -2, false, new double[]{.25, .5, .25});
+			long last = store.size();
+			store.append(1, 7, 3, -3, false, new double[]{.1, .2, .7});
+			store.close();
+
+			//cut off in the middle of the last record, the record before it is the latest
+			File truncated = copy(original, ".truncated", scratch);
+			FileChannel channel = FileChannel.open(truncated.toPath(), StandardOpenOption.WRITE);
+			try{
+				channel.truncate(last + RECORD_HEADER_BYTES/2);
+			}
+			finally{
+				channel.close();
+			}
+			store = new SnapshotStore(truncated.getPath(), 4096);
+			failures += expect(store.numRecords() == 3, "a truncated file keeps the records before the cut");
+			failures += expect(store.latest(1).time == 2, "a record cut off is passed over");
+			store.append(1, 7, 4, -4, false, new double[]{0, 0, 1});
+			failures += expect(store.latest(1).time == 4 && store.latest(2).time == 1, "a truncated file takes new records");
+			store.close();
+
+			//a bit flipped in the last record's belief, its checksum no longer matches
+			File corrupted = copy(original, ".corrupted", scratch);
+			channel = FileChannel.open(corrupted.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try{
+				ByteBuffer b = ByteBuffer.allocate(1);
+				channel.read(b, last + RECORD_HEADER_BYTES);
+				b.put(0, (byte) (b.get(0) ^ 1));
+				b.rewind();
+				channel.write(b, last + RECORD_HEADER_BYTES);
+			}
+			finally{
+				channel.close();
+			}
+			store = new SnapshotStore(corrupted.getPath(), 4096);
+			Snapshot snapshot = store.latest(1);
+			failures += expect(snapshot.time == 2 && snapshot.belief[1] == .5, "a record with a bad checksum falls back to the one before it");
+			failures += expect(store.restore().size() == 2, "a bad checksum loses no session");
+			store.close();
+
+			//bytes that aren't a record after the last one stop the scan
+			File stray = copy(original, ".stray", scratch);
+			channel = FileChannel.open(stray.toPath(), StandardOpenOption.WRITE);
+			try{
+				write(channel, ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}), last + recordBytes(3));
+			}
+			finally{
+				channel.close();
+			}
+			store = new SnapshotStore(stray.getPath(), 4096);
+			failures += expect(store.numRecords() == 4 && store.size() == last + recordBytes(3), "the scan stops at bytes that aren't a record");
+			store.close();
+
+			//compacting keeps the latest record of each session
+			File compacting = copy(original, ".compacting", scratch);
+			store = new SnapshotStore(compacting.getPath(), 4096);
+			store.compact();
+			failures += expect(store.numRecords() == 2 && store.latest(1).time == 3 && store.latest(2).time == 1, "compaction keeps each session's latest record");
+			store.append(2, 7, 2, -2, true, new double[]{.3, .3, .4});
+			store.close();
+			store = new SnapshotStore(compacting.getPath(), 4096);
+			failures += expect(store.numRecords() == 3 && store.latest(2).time == 2, "a compacted file reopens with the records appended after it");
+			store.close();
+
+			//a committed compaction that wasn't installed is finished when the file is opened
+			File interrupted = copy(original, ".interrupted", scratch);
+			File committed = new File(interrupted.getPath() + ".compact");
+			scratch.add(committed);
+			store = new SnapshotStore(copy(original, ".source", scratch).getPath(), 4096);
+			store.compact();
+			store.close();
+			Files.copy(scratch.get(scratch.size() - 1).toPath(), committed.toPath());
+			store = new SnapshotStore(interrupted.getPath(), 4096);
+			failures += expect(store.numRecords() == 2 && !committed.exists(), "opening finishes a compaction cut off by a crash");
+			store.close();
+		}
+		finally{
+			for (File f: scratch){
+				Files.deleteIfExists(f.toPath());
+			}
+		}
+		System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static File copy(File file, String suffix, List<File> scratch) throws IOException{
+		File copy = new File(file.getPath() + suffix);
+		scratch.add(copy);
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+
+	//returns 1 if the check failed
+	private static int expect(boolean passed, String check){
+		System.out.println((passed ? "ok     " : "FAILED ") + check);
+		return passed ? 0 : 1;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * SquareConfusionSensor is a color sensor that errs differently on some squares, such as under bad lighting
+ *
+ * a square can be given its own confusion matrix [true color][reading], every other square uses the shared one.
+ * The robot always stands on a square of a known color, so each variable only needs one row of its matrix:
+ * P(reading o | X = i) = confusion(square of i)[color of i][o]. The rows differ from variable to variable, so the
+ * model is DENSE (one emission array per reading) instead of SYMBOL_INDEXED
+ */
+
+package PROT;
+
+import java.util.Map;
+
+public class SquareConfusionSensor implements EmissionModel {
+
+	private final ColorSensor colors; //the shared confusion matrix, and the color of every variable
+	private final int[] variables; //the location of every variable
+	private final Map<Integer, double[][]> confusion; //by location
+
+	//parameters: ColorSensor colors the sensor of the squares without their own matrix, int[] variables the location of
+	//every variable, Map<Integer, double[][]> confusion the matrix of each square that has one, by location.
+	//The arrays and map are read, not copied
+	public SquareConfusionSensor(ColorSensor colors, int[] variables, Map<Integer, double[][]> confusion){
+		if (variables.length != colors.numVariables()){
+			throw new IllegalArgumentException("the color sensor has " + colors.numVariables() + " variables, not " + variables.length);
+		}
+		for (Map.Entry<Integer, double[][]> square: confusion.entrySet()){
+			checkConfusion(square.getKey(), square.getValue(), colors.numSymbols());
+		}
+		this.colors = colors;
+		this.variables = variables;
+		this.confusion = confusion;
+	}
+
+	//throws an IllegalArgumentException unless confusion is numColors x numColors
+	static void checkConfusion(int location, double[][] confusion, int numColors){
+		boolean square = confusion.length == numColors;
+		for (int c=0; square && c<numColors; c++){
+			square = confusion[c].length == numColors;
+		}
+		if (!square){
+			throw new IllegalArgumentException("the confusion matrix of square " + location + " must be " + numColors + " x " + numColors);
+		}
+	}
+
+	public String structure(){
+		return DENSE;
+	}
+
+	public int numVariables(){
+		return variables.length;
+	}
+
+	public int numObservations(){
+		return colors.numObservations();
+	}
+
+	public double probability(int observation, int variable){
+		double[][] own = confusion.get(variables[variable]);
+		int color = colors.symbol(variable);
+		return own != null ? own[color][observation] : colors.symbolProbability(observation, color);
+	}
+}
@@ -0,0 +1,450 @@
+/**
+ * StateLumping finds variables of a HiddenMarkovModel that the model cannot tell apart and merges them,
+ * giving a smaller model with the same answers. Probabilities are compared after rounding to RESOLUTION, so
+ * variables whose probabilities differ by less than about 1e-9 are lumped too, and the answers are exact to that
+ * tolerance
+ *
+ * two variables are lumped together when they have the same emission probabilities and prior, and for every class,
+ * the same total probability of moving into it and the same total probability of arriving from it.
+ * the coarsest such partition is found by partition refinement (a bisimulation of the chain): start from the classes
+ * of equal emissions and split classes by their totals into one class, the splitter, at a time (Paige and Tarjan,
+ * Hopcroft). Only the variables next to a splitter are looked at, and a variable is in a splitter O(log n) times,
+ * so refining costs O(E log n) for E transitions however many rounds the splitting takes to spread over the maze
+ *
+ * in the reduced model T'[C][B] is the probability of moving from any variable of B into class C. Because every
+ * variable of a class receives the same mass from every class, forward and backward messages are uniform within
+ * each class at every time step, so filtering and smoothing on the reduced model and spreading each class's
+ * probability evenly over its variables gives the same belief states as the full model.
+ * this does not hold for viterbi, the most likely path through classes says nothing about a single path of squares
+ *
+ * open rooms and repeated layouts lump well. In a maze with no symmetry every class is a single square
+ */
+
+package PROT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+public class StateLumping {
+
+	//probabilities are compared after rounding to this many parts, so sums taken in a different order still match
+	private static final double RESOLUTION = 1e9;
+
+	private final HiddenMarkovModel model;
+	private final HiddenMarkovModel reduced;
+
+	private final int numClasses;
+	private final int[] classOf;
+	private final int[] classSize;
+
+	//predecessors of each variable: T[i][predecessors[k]] for k in predecessorStart[i] ..
+	//successors of each variable: T[successors[k]][j] for k in successorStart[j] ..
+	private final int[] predecessorStart;
+	private final int[] predecessors;
+	private final double[] predecessorProbabilities;
+	private final int[] successorStart;
+	private final int[] successors;
+	private final double[] successorProbabilities;
+
+	public StateLumping(HiddenMarkovModel model){
+		this.model = model;
+		int n = model.numVariables();
+
+		//collect the nonzero transitions in both directions
+		int slots = model.slots();
+		int[] columns = model.columns();
+		double[] probabilities = model.probabilities();
+
+		predecessorStart = new int[n + 1];
+		successorStart = new int[n + 1];
+		for (int i=0; i<n; i++){
+			for (int k=i*slots; k<(i+1)*slots; k++){
+				if (probabilities[k] != 0){
+					predecessorStart[i+1]++;
+					successorStart[columns[k]+1]++;
+				}
+			}
+		}
+		for (int i=0; i<n; i++){
+			predecessorStart[i+1] += predecessorStart[i];
+			successorStart[i+1] += successorStart[i];
+		}
+		predecessors = new int[predecessorStart[n]];
+		predecessorProbabilities = new double[predecessors.length];
+		successors = new int[successorStart[n]];
+		successorProbabilities = new double[successors.length];
+		int[] fill = Arrays.copyOf(successorStart, n);
+		int p = 0;
+		for (int i=0; i<n; i++){
+			for (int k=i*slots; k<(i+1)*slots; k++){
+				if (probabilities[k] != 0){
+					int j = columns[k];
+					predecessors[p] = j;
+					predecessorProbabilities[p] = probabilities[k];
+					p++;
+					successors[fill[j]] = i;
+					successorProbabilities[fill[j]] = probabilities[k];
+					fill[j]++;
+				}
+			}
+		}
+
+		//start from the variables with the same emissions and prior
+		classOf = new int[n];
+		HashMap<Signature, Integer> ids = new HashMap<Signature, Integer>();
+		for (int i=0; i<n; i++){
+			long[] values = new long[model.numObservations() + 1];
+			for (int o=0; o<model.numObservations(); o++){
+				values[o] = quantize(model.getEmission(o, i));
+			}
+			values[model.numObservations()] = quantize(model.getPrior(i));
+			classOf[i] = id(ids, new Signature(values));
+		}
+
+		numClasses = refine(ids.size());
+		classSize = new int[numClasses];
+		for (int i=0; i<n; i++){
+			classSize[classOf[i]]++;
+		}
+
+		reduced = buildReducedModel();
+	}
+
+	//Split classes until the flows between classes agree
+	//
+	//the variables of a class are kept together in elements, from classStart to classEnd. A splitter gives every
+	//variable next to it its total probability of arriving from the splitter and of moving into it, and each class
+	//with such a variable is split by those totals, the variables that weren't touched keeping the class's number.
+	//The pieces of a split class become splitters, except the largest one if the class wasn't waiting to be one
+	//itself: the totals into it are those into the class less those into the other pieces
+	//
+	//returns the number of classes
+	//parameters: int count the number of classes classOf starts with
+	private int refine(int count){
+		int n = classOf.length;
+		int[] elements = new int[n];
+		int[] position = new int[n];
+		int[] classStart = new int[n + 1];
+		int[] classEnd = new int[n];
+		for (int i=0; i<n; i++){
+			classStart[classOf[i] + 1]++;
+		}
+		for (int c=0; c<count; c++){
+			classStart[c+1] += classStart[c];
+			classEnd[c] = classStart[c];
+		}
+		for (int i=0; i<n; i++){
+			position[i] = classEnd[classOf[i]]++;
+			elements[position[i]] = i;
+		}
+
+		//splitters waiting to be used
+		int[] waiting = new int[n];
+		boolean[] isWaiting = new boolean[n];
+		int numWaiting = 0;
+		for (int c=0; c<count; c++){
+			waiting[numWaiting++] = c;
+			isWaiting[c] = true;
+		}
+
+		double[] in = new double[n]; //probability of arriving from the splitter
+		double[] out = new double[n]; //probability of moving into the splitter
+		final long[] inKey = new long[n];
+		final long[] outKey = new long[n];
+		boolean[] touched = new boolean[n];
+		Integer[] order = new Integer[n];
+
+		while (numWaiting > 0){
+			int splitter = waiting[--numWaiting];
+			isWaiting[splitter] = false;
+
+			//the totals of the variables next to the splitter
+			int numTouched = 0;
+			for (int k=classStart[splitter]; k<classEnd[splitter]; k++){
+				int j = elements[k];
+				for (int q=successorStart[j]; q<successorStart[j+1]; q++){
+					int i = successors[q];
+					if (!touched[i]){
+						touched[i] = true;
+						order[numTouched++] = i;
+					}
+					in[i] += successorProbabilities[q];
+				}
+				for (int q=predecessorStart[j]; q<predecessorStart[j+1]; q++){
+					int i = predecessors[q];
+					if (!touched[i]){
+						touched[i] = true;
+						order[numTouched++] = i;
+					}
+					out[i] += predecessorProbabilities[q];
+				}
+			}
+			for (int t=0; t<numTouched; t++){
+				int i = order[t];
+				inKey[i] = quantize(in[i]);
+				outKey[i] = quantize(out[i]);
+				in[i] = 0;
+				out[i] = 0;
+				touched[i] = false;
+			}
+
+			//group the touched variables by class, then by their totals
+			Arrays.sort(order, 0, numTouched, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b){
+					if (classOf[a] != classOf[b]){
+						return classOf[a] < classOf[b] ? -1 : 1;
+					}
+					if (inKey[a] != inKey[b]){
+						return inKey[a] < inKey[b] ? -1 : 1;
+					}
+					return outKey[a] < outKey[b] ? -1 : (outKey[a] == outKey[b] ? 0 : 1);
+				}
+			});
+
+			int from = 0;
+			while (from < numTouched){
+				int c = classOf[order[from]];
+				int to = from;
+				int moving = 0; //touched variables with nonzero totals
+				int groups = 0;
+				for (; to < numTouched && classOf[order[to]] == c; to++){
+					int i = order[to];
+					if (inKey[i] != 0 || outKey[i] != 0){
+						moving++;
+						if (to == from || differ(order[to-1], i, inKey, outKey)){
+							groups++;
+						}
+					}
+				}
+				//the variables of the class that weren't touched, or whose totals round to zero, stay in it
+				boolean stayers = moving < classEnd[c] - classStart[c];
+				if (groups + (stayers ? 1 : 0) > 1){
+					int firstPiece = count;
+					boolean kept = stayers; //whether a group has kept the class's number yet
+					int g = from;
+					while (g < to){
+						int i = order[g];
+						int end = g + 1;
+						while (end < to && !differ(i, order[end], inKey, outKey)){
+							end++;
+						}
+						if ((inKey[i] != 0 || outKey[i] != 0) && kept){
+							//move the group to the end of the class's range and make it a class of its own
+							int piece = count++;
+							classEnd[piece] = classEnd[c];
+							for (int k=g; k<end; k++){
+								int x = order[k];
+								int last = --classEnd[c];
+								int y = elements[last];
+								elements[position[x]] = y;
+								position[y] = position[x];
+								elements[last] = x;
+								position[x] = last;
+								classOf[x] = piece;
+							}
+							classStart[piece] = classEnd[c];
+						}
+						else if (inKey[i] != 0 || outKey[i] != 0){
+							kept = true;
+						}
+						g = end;
+					}
+
+					//the pieces are splitters, but the largest can be left out if the class wasn't waiting
+					int largest = -1;
+					if (!isWaiting[c]){
+						largest = c;
+						for (int piece=firstPiece; piece<count; piece++){
+							if (classEnd[piece] - classStart[piece] > classEnd[largest] - classStart[largest]){
+								largest = piece;
+							}
+						}
+						if (largest != c){
+							waiting[numWaiting++] = c;
+							isWaiting[c] = true;
+						}
+					}
+					for (int piece=firstPiece; piece<count; piece++){
+						if (piece != largest){
+							waiting[numWaiting++] = piece;
+							isWaiting[piece] = true;
+						}
+					}
+				}
+				from = to;
+			}
+		}
+		return count;
+	}
+
+	//whether two variables have different totals
+	private static boolean differ(int a, int b, long[] inKey, long[] outKey){
+		return inKey[a] != inKey[b] || outKey[a] != outKey[b];
+	}
+
+	private static int id(HashMap<Signature, Integer> ids, Signature signature){
+		Integer id = ids.get(signature);
+		if (id == null){
+			id = ids.size();
+			ids.put(signature, id);
+		}
+		return id;
+	}
+
+	private static long quantize(double probability){
+		return Math.round(probability*RESOLUTION);
+	}
+
+	//the model over classes, with T'[C][B] taken from any one variable of B
+	private HiddenMarkovModel buildReducedModel(){
+		int n = model.numVariables();
+		int[] representative = new int[numClasses];
+		Arrays.fill(representative, -1);
+		for (int i=0; i<n; i++){
+			if (representative[classOf[i]] < 0){
+				representative[classOf[i]] = i;
+			}
+		}
+
+		//rows of T' as lists of (column, probability)
+		ArrayList<ArrayList<Integer>> rowColumns = new ArrayList<ArrayList<Integer>>(numClasses);
+		ArrayList<ArrayList<Double>> rowProbabilities = new ArrayList<ArrayList<Double>>(numClasses);
+		for (int c=0; c<numClasses; c++){
+			rowColumns.add(new ArrayList<Integer>());
+			rowProbabilities.add(new ArrayList<Double>());
+		}
+		int slots = 1;
+		for (int b=0; b<numClasses; b++){
+			int j = representative[b];
+			HashMap<Integer, Double> into = new HashMap<Integer, Double>();
+			for (int k=successorStart[j]; k<successorStart[j+1]; k++){
+				int c = classOf[successors[k]];
+				Double sum = into.get(c);
+				into.put(c, (sum == null ? 0 : sum) + successorProbabilities[k]);
+			}
+			for (Integer c: into.keySet()){
+				rowColumns.get(c).add(b);
+				rowProbabilities.get(c).add(into.get(c));
+				slots = Math.max(slots, rowColumns.get(c).size());
+			}
+		}
+
+		int[] columns = new int[numClasses*slots];
+		double[] probabilities = new double[numClasses*slots];
+		for (int c=0; c<numClasses; c++){
+			for (int k=0; k<slots; k++){
+				boolean used = k < rowColumns.get(c).size();
+				columns[c*slots + k] = used ? rowColumns.get(c).get(k) : c;
+				probabilities[c*slots + k] = used ? rowProbabilities.get(c).get(k) : 0;
+			}
+		}
+
+		double[][] emission = new double[model.numObservations()][numClasses];
+		for (int o=0; o<model.numObservations(); o++){
+			for (int c=0; c<numClasses; c++){
+				emission[o][c] = model.getEmission(o, representative[c]);
+			}
+		}
+		double[] prior = new double[numClasses];
+		for (int i=0; i<n; i++){
+			prior[classOf[i]] += model.getPrior(i);
+		}
+
+		return new HiddenMarkovModel(slots, columns, probabilities, emission, prior);
+	}
+
+	//the model over classes
+	public HiddenMarkovModel getReducedModel(){
+		return reduced;
+	}
+
+	public int numClasses(){
+		return numClasses;
+	}
+
+	//returns the class of a variable of the full model
+	public int classOf(int variable){
+		return classOf[variable];
+	}
+
+	//returns the number of variables in a class
+	public int classSize(int c){
+		return classSize[c];
+	}
+
+	//Spread a distribution over classes evenly over their variables
+	//returns the array
+	//parameters: double[] classes P(class), double[] into receives P(variable)
+	public double[] expand(double[] classes, double[] into){
+		for (int i=0; i<classOf.length; i++){
+			into[i] = classes[classOf[i]]/classSize[classOf[i]];
+		}
+		return into;
+	}
+
+	//Add up a distribution over variables by class
+	//returns the array
+	public double[] reduce(double[] variables, double[] into){
+		Arrays.fill(into, 0, numClasses, 0);
+		for (int i=0; i<classOf.length; i++){
+			into[classOf[i]] += variables[i];
+		}
+		return into;
+	}
+
+	//Compute the Belief State after the last observation on the reduced model: P(X_t|e_1:t)
+	public double[] filter(int[] obs){
+		return expand(reduced.filter(obs), new double[classOf.length]);
+	}
+
+	//Compute the smoothed belief states on the reduced model, row 0 is the prior
+	public double[][] smoothing(int[] obs){
+		double[][] classes = reduced.smoothing(obs);
+		double[][] smoothed = new double[classes.length][];
+		for (int t=0; t<classes.length; t++){
+			smoothed[t] = expand(classes[t], new double[classOf.length]);
+		}
+		return smoothed;
+	}
+
+	//log P(e_1:t), the same for both models
+	public double logLikelihood(int[] obs){
+		return reduced.logLikelihood(obs);
+	}
+
+	//a hashable list of numbers
+	private static class Signature {
+		private final long[] values;
+		private final int hash;
+
+		Signature(long[] values){
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+
+		public boolean equals(Object other){
+			return other instanceof Signature && Arrays.equals(values, ((Signature) other).values);
+		}
+	}
+
+	public static void main(String[] args){
+		if (args.length < 1){
+			System.err.println("usage: StateLumping maze.maz");
+			System.exit(2);
+		}
+		Maze maze = Maze.readFromFile(args[0]);
+		if (maze == null){
+			System.err.println("could not read maze " + args[0]);
+			System.exit(1);
+		}
+		StateLumping lumping = new StateLumping(new SensorRobot(maze).getModel());
+		System.out.println(args[0] + ": " + lumping.classOf.length + " variables in " + lumping.numClasses() + " classes");
+	}
+}
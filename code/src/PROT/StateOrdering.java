@@ -0,0 +1,274 @@
+/**
+ * StateOrdering decides the order the legal squares of a maze are numbered in
+ *
+ * every belief vector, and every row and column of the transition and observation models, follows the order of
+ * SensorRobot.variables. Numbered in row-major order, the squares above and below a square are a whole row apart,
+ * so in a wide maze every prediction step reads three far apart parts of the belief vector for each square.
+ * the other orders keep squares that are close in the maze close in memory:
+ *
+ *   ROW_MAJOR  - the order squares appear in the maze file
+ *   MORTON     - the Z-order curve, interleaving the bits of x and y
+ *   HILBERT    - the Hilbert curve, which never jumps between squares that aren't adjacent
+ *   RCM        - reverse Cuthill-McKee, a breadth first numbering that keeps the bandwidth of T small
+ *
+ * the order only changes where each square's numbers are stored, never the results
+ */
+
+package PROT;
+
+import java.util.Arrays;
+
+public class StateOrdering {
+
+	public static final String ROW_MAJOR = "row-major";
+	public static final String MORTON = "morton";
+	public static final String HILBERT = "hilbert";
+	public static final String RCM = "rcm";
+
+	public static final String[] ORDERINGS = {ROW_MAJOR, MORTON, HILBERT, RCM};
+
+	private StateOrdering(){
+	}
+
+	//Order the legal squares of a maze
+	//
+	//returns the maze locations of the legal squares in the given order
+	//parameters: Maze maze, String ordering one of ORDERINGS
+	public static int[] order(Maze maze, String ordering){
+		if (ordering.equals(ROW_MAJOR)){
+			return rowMajor(maze);
+		}
+		else if (ordering.equals(MORTON)){
+			return curve(maze, false);
+		}
+		else if (ordering.equals(HILBERT)){
+			return curve(maze, true);
+		}
+		else if (ordering.equals(RCM)){
+			return reverseCuthillMcKee(maze);
+		}
+		throw new IllegalArgumentException("unknown ordering " + ordering);
+	}
+
+	private static int[] rowMajor(Maze maze){
+		int[] locations = new int[maze.legalCoutn()];
+		int i = 0;
+		for (int location=0; location<maze.size(); location++){
+			if (maze.isLegal(location)){
+				locations[i++] = location;
+			}
+		}
+		return locations;
+	}
+
+	//sort the squares by their index along a space filling curve over the smallest power of two square covering the maze
+	private static int[] curve(Maze maze, boolean hilbert){
+		int side = 1;
+		while (side < Math.max(maze.width, maze.height)){
+			side *= 2;
+		}
+
+		long[] keys = new long[maze.legalCoutn()];
+		int i = 0;
+		for (int y=0; y<maze.height; y++){
+			for (int x=0; x<maze.width; x++){
+				if (maze.isLegal(x, y)){
+					keys[i++] = hilbert ? hilbertIndex(side, x, y) : mortonIndex(x, y);
+				}
+			}
+		}
+
+		//the curves visit every square once, so the keys can be turned straight back into squares
+		Arrays.sort(keys);
+		int[] locations = new int[keys.length];
+		int[] xy = new int[2];
+		for (i=0; i<keys.length; i++){
+			if (hilbert){
+				hilbertSquare(side, keys[i], xy);
+			}
+			else{
+				mortonSquare(keys[i], xy);
+			}
+			locations[i] = xy[0] + xy[1]*maze.width;
+		}
+		return locations;
+	}
+
+	//interleave the bits of x and y
+	static long mortonIndex(int x, int y){
+		return spread(x) | (spread(y) << 1);
+	}
+
+	static void mortonSquare(long index, int[] xy){
+		xy[0] = compact(index);
+		xy[1] = compact(index >>> 1);
+	}
+
+	//put a zero bit between each of the bits of value
+	private static long spread(int value){
+		long v = value & 0xffffffffL;
+		v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+		v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+		v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	//the inverse of spread, reading every other bit
+	private static int compact(long value){
+		long v = value & 0x5555555555555555L;
+		v = (v | (v >>> 1)) & 0x3333333333333333L;
+		v = (v | (v >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v >>> 4)) & 0x00ff00ff00ff00ffL;
+		v = (v | (v >>> 8)) & 0x0000ffff0000ffffL;
+		v = (v | (v >>> 16)) & 0x00000000ffffffffL;
+		return (int) v;
+	}
+
+	//distance of (x, y) along the Hilbert curve filling a side x side square, side a power of two
+	static long hilbertIndex(int side, int x, int y){
+		long index = 0;
+		for (int s=side/2; s>0; s/=2){
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			index += (long) s*s*((3*rx) ^ ry);
+
+			//rotate the quadrant so the curve inside it starts at the origin
+			if (ry == 0){
+				if (rx == 1){
+					x = s-1 - x;
+					y = s-1 - y;
+				}
+				int swap = x;
+				x = y;
+				y = swap;
+			}
+		}
+		return index;
+	}
+
+	static void hilbertSquare(int side, long index, int[] xy){
+		int x = 0;
+		int y = 0;
+		long t = index;
+		for (int s=1; s<side; s*=2){
+			int rx = (int) (1 & (t/2));
+			int ry = (int) (1 & (t ^ rx));
+			if (ry == 0){
+				if (rx == 1){
+					x = s-1 - x;
+					y = s-1 - y;
+				}
+				int swap = x;
+				x = y;
+				y = swap;
+			}
+			x += s*rx;
+			y += s*ry;
+			t /= 4;
+		}
+		xy[0] = x;
+		xy[1] = y;
+	}
+
+	//breadth first search from a square with few neighbors, visiting the neighbors with the fewest neighbors first,
+	//one connected region after another, then reversed
+	private static int[] reverseCuthillMcKee(Maze maze){
+		int[] locations = new int[maze.legalCoutn()];
+		boolean[] visited = new boolean[maze.size()];
+		int[] neighbors = new int[4];
+		int head = 0;
+		int tail = 0;
+
+		//start every region from its lowest degree square, found by scanning squares in order of degree
+		for (int degree=0; degree<=4; degree++){
+			for (int location=0; location<maze.size(); location++){
+				if (visited[location] || !maze.isLegal(location) || neighbors(maze, location, neighbors) != degree){
+					continue;
+				}
+				visited[location] = true;
+				locations[tail++] = location;
+				while (head < tail){
+					int count = neighbors(maze, locations[head++], neighbors);
+					sortByDegree(maze, neighbors, count);
+					for (int n=0; n<count; n++){
+						if (!visited[neighbors[n]]){
+							visited[neighbors[n]] = true;
+							locations[tail++] = neighbors[n];
+						}
+					}
+				}
+			}
+		}
+
+		for (int i=0, j=locations.length-1; i<j; i++, j--){
+			int swap = locations[i];
+			locations[i] = locations[j];
+			locations[j] = swap;
+		}
+		return locations;
+	}
+
+	//the legal squares next to a square
+	//returns how many were written into neighbors
+	private static int neighbors(Maze maze, int location, int[] neighbors){
+		int x = location%maze.width;
+		int y = location/maze.width;
+		int count = 0;
+		if (maze.isLegal(x+1, y)){
+			neighbors[count++] = location + 1;
+		}
+		if (maze.isLegal(x, y+1)){
+			neighbors[count++] = location + maze.width;
+		}
+		if (maze.isLegal(x-1, y)){
+			neighbors[count++] = location - 1;
+		}
+		if (maze.isLegal(x, y-1)){
+			neighbors[count++] = location - maze.width;
+		}
+		return count;
+	}
+
+	//insertion sort of at most four squares by their number of neighbors
+	private static void sortByDegree(Maze maze, int[] squares, int count){
+		int[] scratch = new int[4];
+		int[] degrees = new int[count];
+		for (int i=0; i<count; i++){
+			degrees[i] = neighbors(maze, squares[i], scratch);
+		}
+		for (int i=1; i<count; i++){
+			for (int j=i; j>0 && degrees[j-1] > degrees[j]; j--){
+				int swap = degrees[j];
+				degrees[j] = degrees[j-1];
+				degrees[j-1] = swap;
+				swap = squares[j];
+				squares[j] = squares[j-1];
+				squares[j-1] = swap;
+			}
+		}
+	}
+
+	//Measure how close in memory the squares that exchange probability are
+	//
+	//returns the fraction of the nonzero entries T[i][j], i != j, with |i - j| <= within
+	//parameters: int within a distance in variables, 8 doubles share a 64 byte cache line and 512 share a 4KB page
+	public static double neighborsWithin(HiddenMarkovModel model, int within){
+		int slots = model.slots();
+		int[] columns = model.columns();
+		double[] probabilities = model.probabilities();
+		long near = 0;
+		long count = 0;
+		for (int k=0; k<columns.length; k++){
+			int i = k/slots;
+			if (probabilities[k] != 0 && columns[k] != i){
+				if (Math.abs(i - columns[k]) <= within){
+					near++;
+				}
+				count++;
+			}
+		}
+		return count == 0 ? 1 : near/(double) count;
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * StencilOperator is a transition model where every variable moves the same way: move m is made with the same
+ * probability wherever the robot is, and takes it from its source variable to another. A move with nowhere to
+ * go leaves the robot where it is, so that probability is on the diagonal of T
+ *
+ * row() must agree with the moves: row i holds moveProbability(m) at source(m, i) for every move with a source,
+ * and whatever is left on the diagonal
+ */
+
+package PROT;
+
+public interface StencilOperator extends TransitionOperator {
+
+	public int numMoves();
+
+	//returns the probability of making move m, the same for every variable
+	public double moveProbability(int m);
+
+	//returns the variable move m takes to variable i, or -1 if no variable does
+	public int source(int m, int i);
+}
@@ -0,0 +1,18 @@
+/**
+ * SymbolEmissionModel is a sensor model where each variable shows a symbol and the reading only depends on it:
+ * P(E_t = o | X_t = i) = symbolProbability(o, symbol(i))
+ */
+
+package PROT;
+
+public interface SymbolEmissionModel extends EmissionModel {
+
+	//returns the number of symbols, at most 256
+	public int numSymbols();
+
+	//returns the symbol variable shows
+	public int symbol(int variable);
+
+	//returns P(E_t = observation | the variable shows symbol)
+	public double symbolProbability(int observation, int symbol);
+}
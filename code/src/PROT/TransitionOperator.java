@@ -0,0 +1,40 @@
+/**
+ * TransitionOperator describes a transition model T[i][j] = P(X_t = i | X_t-1 = j) to HiddenMarkovModel
+ *
+ * an operator lists T one row at a time, and declares the structure of T, which picks the kernel the model
+ * runs it with:
+ *
+ *   STENCIL   - every variable moves by the same moves with the same probabilities, like a robot on a grid.
+ *               the operator must also be a StencilOperator. Each step reads one source index per move instead
+ *               of an index and a probability per entry
+ *   SPARSE    - a few entries per row, anywhere
+ *   DENSE     - any variable can follow any other, T is kept as a plain S x S array with no indices
+ *   DIAGONAL  - the variables never change, prediction is an elementwise product
+ *
+ * whatever the structure, the model also has the rows in the sparse form the other inference engines
+ * (viterbi, TransitionPowers, StateLumping, ...) read, so a structure only changes how fast the model runs.
+ * A DENSE model only builds them the first time one of those engines asks
+ */
+
+package PROT;
+
+public interface TransitionOperator {
+
+	public static final String STENCIL = "stencil";
+	public static final String SPARSE = "sparse";
+	public static final String DENSE = "dense";
+	public static final String DIAGONAL = "diagonal";
+
+	//returns one of STENCIL, SPARSE, DENSE or DIAGONAL
+	public String structure();
+
+	public int numVariables();
+
+	//returns the most entries any row has
+	public int maxEntries();
+
+	//Write the nonzero entries of row i: T[i][columns[offset + k]] = probabilities[offset + k]
+	//
+	//returns the number of entries written, at most maxEntries()
+	public int row(int i, int[] columns, double[] probabilities, int offset);
+}
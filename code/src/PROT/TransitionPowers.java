@@ -0,0 +1,215 @@
+/**
+ * TransitionPowers advances a belief state over stretches of time with no observations
+ *
+ * without an observation a filtering step is just a prediction, belief = T*belief, so k missing readings
+ * in a row are belief = T^k*belief. The powers T^2, T^4, T^8, ... are built once by squaring the previous one
+ * and kept as sparse matrices, and T^k is applied as the product of the powers in the binary expansion of k:
+ * O(log k) sparse matrix-vector products instead of k.
+ *
+ * powers fill in as they grow (T^m reaches every square within m moves), so a power is only used while
+ * applying it costs no more than the single steps it replaces. In a small or medium maze the powers soon cover
+ * every square and stop growing, and from then on each doubling of a gap costs one more product.
+ * the cache has a budget of stored entries; once the next power would go over it, the largest cached power that
+ * pays off is applied as many times as needed, which is never slower than stepping one prediction at a time
+ *
+ * a TransitionPowers is safe to share between threads, the powers are built under its lock and never change afterwards
+ */
+
+package PROT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TransitionPowers {
+
+	//stored entries across all cached powers, about 12 bytes each
+	public static final long DEFAULT_MAX_ENTRIES = 1 << 22;
+
+	private final HiddenMarkovModel model;
+	private final int numVariables;
+	private final long maxEntries;
+
+	//powers.get(m) is T^(2^m)
+	private final ArrayList<Power> powers = new ArrayList<Power>();
+	private long entries = 0;
+	private boolean full = false; //the next power didn't fit in the budget
+
+	//a power of T in compressed rows: P[i][columns[k]] = values[k] for k in rowStart[i] ..
+	private static class Power {
+		final int[] rowStart;
+		final int[] columns;
+		final double[] values;
+
+		Power(int[] rowStart, int[] columns, double[] values){
+			this.rowStart = rowStart;
+			this.columns = columns;
+			this.values = values;
+		}
+
+		//out = P*in
+		void apply(double[] in, double[] out){
+			for (int i=0; i<rowStart.length-1; i++){
+				double p = 0;
+				for (int k=rowStart[i]; k<rowStart[i+1]; k++){
+					p += values[k]*in[columns[k]];
+				}
+				out[i] = p;
+			}
+		}
+	}
+
+	public TransitionPowers(HiddenMarkovModel model){
+		this(model, DEFAULT_MAX_ENTRIES);
+	}
+
+	//parameters: long maxEntries the most matrix entries kept over all cached powers
+	public TransitionPowers(HiddenMarkovModel model, long maxEntries){
+		this.model = model;
+		this.numVariables = model.numVariables();
+		this.maxEntries = maxEntries;
+	}
+
+	//Predict steps time steps ahead with no observations: T^steps*belief
+	//
+	//returns whichever of the two arrays holds the result
+	//parameters: double[] belief the belief state to start from, long steps, double[] spare scratch space,
+	//both arrays are overwritten
+	public double[] advance(double[] belief, long steps, double[] spare){
+		double[] current = belief;
+		double[] next = spare;
+		while (steps > 0){
+			//the largest cached power that doesn't overshoot and is cheaper than stepping
+			int level = 63 - Long.numberOfLeadingZeros(steps);
+			Power power = null;
+			for (; power == null; level--){
+				power = power(level);
+			}
+			level++;
+
+			power.apply(current, next);
+			double[] swap = current;
+			current = next;
+			next = swap;
+			steps -= 1L << level;
+		}
+		return current;
+	}
+
+	//returns T^(2^level), building it if the budget allows,
+	//or null if it isn't cached or applying it would cost more than 2^level single steps
+	private synchronized Power power(int level){
+		if (powers.isEmpty()){
+			powers.add(fromModel());
+		}
+		while (powers.size() <= level && !full){
+			Power square = square(powers.get(powers.size()-1));
+			if (square == null){
+				full = true;
+			}
+			else{
+				powers.add(square);
+				entries += square.values.length;
+			}
+		}
+		if (level >= powers.size()){
+			return null;
+		}
+		Power power = powers.get(level);
+		return power.values.length <= stepCost(powers.get(0).values.length, level) ? power : null;
+	}
+
+	//returns the entries read by 2^level single steps of T, in a long and saturated so a deep level can't overflow
+	private static long stepCost(long entries, int level){
+		if (level >= 63 || entries > (Long.MAX_VALUE >> level)){
+			return Long.MAX_VALUE;
+		}
+		return entries << level;
+	}
+
+	//T itself, with the padding slots dropped
+	private Power fromModel(){
+		int slots = model.slots();
+		int[] modelColumns = model.columns();
+		double[] probabilities = model.probabilities();
+
+		int[] rowStart = new int[numVariables + 1];
+		for (int i=0; i<numVariables; i++){
+			rowStart[i+1] = rowStart[i];
+			for (int k=i*slots; k<(i+1)*slots; k++){
+				if (probabilities[k] != 0){
+					rowStart[i+1]++;
+				}
+			}
+		}
+		int[] columns = new int[rowStart[numVariables]];
+		double[] values = new double[columns.length];
+		int n = 0;
+		for (int k=0; k<probabilities.length; k++){
+			if (probabilities[k] != 0){
+				columns[n] = modelColumns[k];
+				values[n] = probabilities[k];
+				n++;
+			}
+		}
+		return new Power(rowStart, columns, values);
+	}
+
+	//P*P one row at a time with a dense accumulator
+	//returns null if the result would go over the budget
+	private Power square(Power p){
+		long budget = maxEntries - entries;
+		int[] rowStart = new int[numVariables + 1];
+		int[] columns = new int[Math.max(16, p.values.length*2)];
+		double[] values = new double[columns.length];
+
+		double[] row = new double[numVariables];
+		boolean[] used = new boolean[numVariables];
+		int[] touched = new int[numVariables];
+		int n = 0;
+		for (int i=0; i<numVariables; i++){
+			int count = 0;
+			for (int k=p.rowStart[i]; k<p.rowStart[i+1]; k++){
+				int m = p.columns[k];
+				double a = p.values[k];
+				for (int l=p.rowStart[m]; l<p.rowStart[m+1]; l++){
+					int j = p.columns[l];
+					if (!used[j]){
+						used[j] = true;
+						touched[count++] = j;
+					}
+					row[j] += a*p.values[l];
+				}
+			}
+
+			if (n + count > budget){
+				return null;
+			}
+			if (n + count > columns.length){
+				int size = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L*columns.length, n + count));
+				columns = Arrays.copyOf(columns, size);
+				values = Arrays.copyOf(values, size);
+			}
+			Arrays.sort(touched, 0, count);
+			for (int c=0; c<count; c++){
+				int j = touched[c];
+				columns[n] = j;
+				values[n] = row[j];
+				n++;
+				row[j] = 0;
+				used[j] = false;
+			}
+			rowStart[i+1] = n;
+		}
+		return new Power(rowStart, Arrays.copyOf(columns, n), Arrays.copyOf(values, n));
+	}
+
+	//number of cached powers, T itself included
+	public synchronized int numPowers(){
+		return powers.size();
+	}
+
+	//matrix entries held by the cached powers, T itself not included
+	public synchronized long entries(){
+		return entries;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * WorkspacePool keeps idle InferenceWorkspaces for a model so concurrent queries can reuse them
+ * instead of allocating new buffers every time
+ *
+ * acquire() and release() are thread safe. A workspace must be released by the query that acquired it,
+ * and must not be used after it is released
+ */
+
+package PROT;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkspacePool {
+
+	//idle workspaces beyond this are dropped, so a burst of queries doesn't pin memory forever
+	private static final int DEFAULT_MAX_IDLE = 256;
+
+	private final HiddenMarkovModel model;
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<InferenceWorkspace> idle = new ConcurrentLinkedQueue<InferenceWorkspace>();
+	private final AtomicInteger numIdle = new AtomicInteger();
+
+	public WorkspacePool(HiddenMarkovModel model){
+		this(model, DEFAULT_MAX_IDLE);
+	}
+
+	public WorkspacePool(HiddenMarkovModel model, int maxIdle){
+		this.model = model;
+		this.maxIdle = maxIdle;
+	}
+
+	//get an idle workspace, or a new one if there are none
+	public InferenceWorkspace acquire(){
+		InferenceWorkspace workspace = idle.poll();
+		if (workspace == null){
+			return model.newWorkspace();
+		}
+		numIdle.decrementAndGet();
+		return workspace;
+	}
+
+	//give a workspace back to the pool
+	public void release(InferenceWorkspace workspace){
+		if (workspace.numVariables() != model.numVariables()){
+			throw new IllegalArgumentException("workspace does not belong to this model");
+		}
+		if (numIdle.incrementAndGet() > maxIdle){
+			numIdle.decrementAndGet();
+			return;
+		}
+		idle.offer(workspace);
+	}
+}